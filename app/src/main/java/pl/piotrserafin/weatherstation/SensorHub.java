@@ -3,8 +3,10 @@ package pl.piotrserafin.weatherstation;
 
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Process;
 import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.google.android.things.iotcore.ConnectionCallback;
 import com.google.android.things.iotcore.IotCoreClient;
@@ -17,12 +19,31 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import pl.piotrserafin.weatherstation.history.HistoryQuery;
+import pl.piotrserafin.weatherstation.history.TimeSeriesStore;
 import pl.piotrserafin.weatherstation.iotcore.MessagePayload;
 import pl.piotrserafin.weatherstation.iotcore.Parameters;
 import pl.piotrserafin.weatherstation.model.SensorData;
+import pl.piotrserafin.weatherstation.pipeline.AdaptiveSampler;
+import pl.piotrserafin.weatherstation.pipeline.DeadbandFilter;
+import pl.piotrserafin.weatherstation.pipeline.DerivedMetrics;
+import pl.piotrserafin.weatherstation.pipeline.PipelineMetrics;
+import pl.piotrserafin.weatherstation.pipeline.PublishMode;
+import pl.piotrserafin.weatherstation.pipeline.SampleBatch;
+import pl.piotrserafin.weatherstation.pipeline.SensorCorrections;
+import pl.piotrserafin.weatherstation.pipeline.SpscQueue;
+import pl.piotrserafin.weatherstation.pipeline.WindowAggregator;
+import pl.piotrserafin.weatherstation.pipeline.WindowSummary;
+import pl.piotrserafin.weatherstation.sensor.AsyncSensorCollector;
+import pl.piotrserafin.weatherstation.sensor.CollectorHealth;
 import pl.piotrserafin.weatherstation.sensor.SensorCollector;
+import pl.piotrserafin.weatherstation.sensor.SyncCollectorAdapter;
 import pl.piotrserafin.weatherstation.utils.AuthKeyGenerator;
 import pl.piotrserafin.weatherstation.utils.TimerHelper;
 import timber.log.Timber;
@@ -32,55 +53,114 @@ public class SensorHub {
 
     private static final int DEFAULT_TELEMETRY_PER_HOUR = 60*6; // every 10 seconds
     private static final int DEFAULT_STATE_UPDATES_PER_HOUR = 60; // every minute
+    private static final long COLLECTION_TIMEOUT_MS = 5000;
+    private static final int SAMPLE_QUEUE_CAPACITY = 64;
+    private static final int BACKFILL_POINTS_PER_EVENT = 256;
 
-    private HandlerThread backgroundThread;
+    // sampling runs on its own thread, so slow publishing cannot skew sample timestamps
+    private HandlerThread samplingThread;
+    private HandlerThread publishingThread;
     private Handler eventsHandler;
     private Handler recurrentTasksHandler;
 
-    private int configurationVersion;
+    private volatile int configurationVersion;
 
-    private int telemetryEventsPerHour;
-    private int stateUpdatesPerHour;
+    private volatile int telemetryEventsPerHour;
+    private volatile int stateUpdatesPerHour;
+    private volatile int samplesPerHour;
+    private volatile PublishMode publishMode;
 
+    private long lastSampleRun;
     private long lastTelemetryRun;
     private long lastStateUpdateRun;
 
-    private List<SensorCollector> collectors;
+    private List<AsyncSensorCollector> collectors;
+    // same order as collectors
+    private List<CollectorHealth> collectorHealth;
 
     private Parameters params;
     private IotCoreClient iotCoreClient;
 
     private AtomicBoolean ready;
 
+    private final SpscQueue<SampleBatch> sampleQueue;
+    private final PipelineMetrics pipelineMetrics;
+    private final AtomicBoolean drainScheduled;
+    private final AdaptiveSampler sampler;
+    // owned by the sampling thread
+    private SensorCorrections corrections;
+    private final DerivedMetrics derivedMetrics;
+    private MessagePayload.DeviceConfig appliedDeviceConfig;
+    // physical sensors offered by the collectors when the config was applied
+    private final HashSet<String> configuredSensors;
+
+    // owned by the publishing thread
+    private final WindowAggregator aggregator;
+    private final DeadbandFilter deadbandFilter;
+    private TimeSeriesStore historyStore;
+
     public SensorHub(Parameters params) {
         this.ready =  new AtomicBoolean(false);
         this.configurationVersion = 0;
         this.telemetryEventsPerHour = DEFAULT_TELEMETRY_PER_HOUR;
         this.stateUpdatesPerHour = DEFAULT_STATE_UPDATES_PER_HOUR;
+        this.samplesPerHour = DEFAULT_TELEMETRY_PER_HOUR;
+        this.publishMode = PublishMode.RAW;
         this.params = params;
         this.collectors = new ArrayList<>();
+        this.collectorHealth = new ArrayList<>();
+        this.sampleQueue = new SpscQueue<>(SAMPLE_QUEUE_CAPACITY);
+        this.pipelineMetrics = new PipelineMetrics();
+        this.drainScheduled = new AtomicBoolean(false);
+        this.sampler = new AdaptiveSampler(60*60*1000L/DEFAULT_TELEMETRY_PER_HOUR);
+        this.aggregator = new WindowAggregator(
+                MessagePayload.DeviceConfig.DEFAULT_SLIDING_WINDOW_SECONDS * 1000L);
+        this.deadbandFilter = new DeadbandFilter();
+        this.corrections = SensorCorrections.NONE;
+        this.derivedMetrics = new DerivedMetrics();
+        this.configuredSensors = new HashSet<>();
     }
 
     public void registerSensorCollector(@NonNull SensorCollector collector) {
+        registerSensorCollector(new SyncCollectorAdapter(collector));
+    }
+
+    public void registerSensorCollector(@NonNull AsyncSensorCollector collector) {
         collectors.add(collector);
+        collectorHealth.add(new CollectorHealth());
+    }
+
+    /**
+     * Keeps every collected reading in the given local store. The hub closes it on stop.
+     */
+    public void setHistoryStore(@Nullable TimeSeriesStore historyStore) {
+        this.historyStore = historyStore;
     }
 
     public void start() throws GeneralSecurityException, IOException {
         initializeIfNeeded();
 
-        backgroundThread = new HandlerThread("IotCoreThread");
-        backgroundThread.start();
-        eventsHandler = new Handler(backgroundThread.getLooper());
-        recurrentTasksHandler = new Handler(backgroundThread.getLooper());
+        samplingThread = new HandlerThread("SensorSamplingThread",
+                Process.THREAD_PRIORITY_MORE_FAVORABLE);
+        samplingThread.start();
+        recurrentTasksHandler = new Handler(samplingThread.getLooper());
+
+        publishingThread = new HandlerThread("IotCoreThread");
+        publishingThread.start();
+        eventsHandler = new Handler(publishingThread.getLooper());
 
-        recurrentTasksHandler.post(recurrentTelemetryPublisher);
-        recurrentTasksHandler.post(stateUpdatePublisher);
+        recurrentTasksHandler.post(recurrentSampler);
+        eventsHandler.post(stateUpdatePublisher);
     }
 
     public void stop() {
         Timber.d("Stop SensorHub");
-        backgroundThread.quitSafely();
+        samplingThread.quitSafely();
+        publishingThread.quitSafely();
         closeCollectors();
+        if (historyStore != null) {
+            historyStore.close();
+        }
         iotCoreClient.disconnect();
     }
 
@@ -123,8 +203,14 @@ public class SensorHub {
             Timber.w("Ignoring empty device config event");
             return;
         }
-        MessagePayload.DeviceConfig deviceConfig = MessagePayload.parseDeviceConfigPayload(
-                new String(bytes));
+        MessagePayload.DeviceConfig deviceConfig;
+        try {
+            deviceConfig = MessagePayload.parseDeviceConfigPayload(new String(bytes));
+        } catch (IllegalArgumentException e) {
+            // keep running with the current config, a later version may fix it
+            Timber.w(e, "Rejecting invalid device config");
+            return;
+        }
         if (deviceConfig.version <= configurationVersion) {
             Timber.w("Ignoring device config message with old version. Current version: " +
                     configurationVersion + ", Version received: " + deviceConfig.version);
@@ -141,25 +227,107 @@ public class SensorHub {
     private void reconfigure(MessagePayload.DeviceConfig deviceConfig) {
         telemetryEventsPerHour = deviceConfig.telemetryEventsPerHour;
         stateUpdatesPerHour = deviceConfig.stateUpdatesPerHour;
+        samplesPerHour = deviceConfig.samplesPerHour;
+        publishMode = deviceConfig.publishMode;
+        corrections = SensorCorrections.compile(deviceConfig.corrections);
+        applyActiveSensors(deviceConfig);
 
+        // reconfigure recurrent tasks:
+        recurrentTasksHandler.removeCallbacks(recurrentSampler);
+        scheduleNextSensorCollection();
+        eventsHandler.post(() -> {
+            aggregator.setSlidingWindowMillis(deviceConfig.slidingWindowSeconds * 1000L);
+            deadbandFilter.setThresholds(deviceConfig.deadbands);
+            eventsHandler.removeCallbacks(stateUpdatePublisher);
+            eventsHandler.removeCallbacks(recurrentSummaryPublisher);
+            scheduleNextStatusUpdate();
+            if (publishMode == PublishMode.SUMMARY) {
+                aggregator.closeTumblingWindows(System.currentTimeMillis());
+                scheduleNextSummary();
+            }
+            if (deviceConfig.backfill != null) {
+                publishBackfill(deviceConfig.backfill);
+            }
+        });
+    }
+
+    /**
+     * Enables the configured sensors among those the collectors currently offer. Collectors
+     * may only learn about some of their sensors on activation, so this is applied again when
+     * new sensors show up.
+     */
+    private void applyActiveSensors(MessagePayload.DeviceConfig deviceConfig) {
+        appliedDeviceConfig = deviceConfig;
+        configuredSensors.clear();
         HashSet<String> toEnable = new HashSet<>(Arrays.asList(deviceConfig.activeSensors));
 
-        for (SensorCollector collector: collectors) {
+        long minIntervalMillis = 0;
+        List<String> physicalSensors = new ArrayList<>();
+        for (AsyncSensorCollector collector: collectors) {
+            collector.configure(deviceConfig);
             for (String sensor: collector.getAvailableSensors()) {
                 boolean enable = toEnable.remove(sensor);
                 collector.setEnabled(sensor, enable);
+                physicalSensors.add(sensor);
+                configuredSensors.add(sensor);
+            }
+            minIntervalMillis = Math.max(minIntervalMillis,
+                    collector.getMinSamplingIntervalMillis());
+        }
+
+        derivedMetrics.configure(physicalSensors, deviceConfig.altitudeMeters);
+        List<String> activeSensors = Arrays.asList(deviceConfig.activeSensors);
+        for (String sensor: derivedMetrics.getAvailableSensors()) {
+            boolean enable = toEnable.remove(sensor);
+            derivedMetrics.setEnabled(sensor, enable);
+            if (enable && !activeSensors.containsAll(derivedMetrics.getInputs(sensor))) {
+                Timber.w("%s needs %s in active-sensors", sensor,
+                        derivedMetrics.getInputs(sensor));
             }
         }
+        // sampling faster than the slowest collector converts would only repeat readings
+        sampler.configure(60*60*1000L/samplesPerHour, deviceConfig.samplingPolicies,
+                minIntervalMillis);
 
         if (!toEnable.isEmpty()) {
             Timber.w("Ignoring unknown sensors in device config active-sensors: %s", toEnable);
         }
+    }
 
-        // reconfigure recurrent tasks:
-        recurrentTasksHandler.removeCallbacks(recurrentTelemetryPublisher);
-        recurrentTasksHandler.removeCallbacks(stateUpdatePublisher);
-        scheduleNextSensorCollection();
-        scheduleNextStatusUpdate();
+    /**
+     * Streams the queried history to IoT Core in chunks, without collecting it first.
+     */
+    private void publishBackfill(HistoryQuery query) {
+        if (historyStore == null || iotCoreClient == null) {
+            Timber.w("Ignoring backfill request without local history or IoT Core: %s", query);
+            return;
+        }
+        long[] timestamps = new long[BACKFILL_POINTS_PER_EVENT];
+        float[] values = new float[BACKFILL_POINTS_PER_EVENT];
+        int[] pending = new int[1];
+        int points = historyStore.query(query, (timestamp, value) -> {
+            if (Float.isNaN(value)) {
+                return;
+            }
+            timestamps[pending[0]] = timestamp;
+            values[pending[0]] = value;
+            if (++pending[0] == BACKFILL_POINTS_PER_EVENT) {
+                publishBackfillChunk(query, timestamps, values, pending[0]);
+                pending[0] = 0;
+            }
+        });
+        if (pending[0] > 0) {
+            publishBackfillChunk(query, timestamps, values, pending[0]);
+        }
+        Timber.i("Published %d points of backfill %s", points, query);
+    }
+
+    private void publishBackfillChunk(HistoryQuery query, long[] timestamps, float[] values,
+                                      int count) {
+        String payload = MessagePayload.createBackfillMessagePayload(query, timestamps, values,
+                count);
+        iotCoreClient.publishTelemetry(new TelemetryEvent(payload.getBytes(),
+                null, TelemetryEvent.QOS_AT_LEAST_ONCE));
     }
 
     private void processSensorEvent(SensorData event) {
@@ -185,16 +353,54 @@ public class SensorHub {
         iotCoreClient.publishTelemetry(event);
     }
 
+    private void publishSummary() {
+        long now = System.currentTimeMillis();
+        List<WindowSummary> summaries = aggregator.closeTumblingWindows(now);
+        if (summaries.isEmpty()) {
+            Timber.d("No samples in the last window, skipping summary");
+            return;
+        }
+        long windowStart = now;
+        for (WindowSummary summary : summaries) {
+            windowStart = Math.min(windowStart, summary.getWindowStart());
+        }
+        String payload = MessagePayload.createSummaryMessagePayload(windowStart, now, summaries);
+        Timber.d("Publishing telemetry summary: %s", payload);
+        if (iotCoreClient == null) {
+            Timber.w("Ignoring window summary because IotCoreClient is not yet active.");
+            return;
+        }
+
+        TelemetryEvent event = new TelemetryEvent(payload.getBytes(),
+                null, TelemetryEvent.QOS_AT_LEAST_ONCE);
+        iotCoreClient.publishTelemetry(event);
+    }
+
     private void publishDeviceState() {
-        List<String> activeSensors = new ArrayList<>();
-        List<String> allSensors = new ArrayList<>();
-        for (SensorCollector collector: collectors) {
-            allSensors.addAll(collector.getAvailableSensors());
-            activeSensors.addAll(collector.getEnabledSensors());
-        }
-        String payload = MessagePayload.createDeviceStateUpdatePayload(
-                configurationVersion, telemetryEventsPerHour, stateUpdatesPerHour,
-                allSensors, activeSensors);
+        MessagePayload.DeviceState state = new MessagePayload.DeviceState();
+        state.version = configurationVersion;
+        state.telemetryEventsPerHour = telemetryEventsPerHour;
+        state.stateUpdatesPerHour = stateUpdatesPerHour;
+        state.samplesPerHour = samplesPerHour;
+        state.publishMode = publishMode;
+        state.allSensors = new ArrayList<>();
+        state.activeSensors = new ArrayList<>();
+        for (AsyncSensorCollector collector: collectors) {
+            state.allSensors.addAll(collector.getAvailableSensors());
+            state.activeSensors.addAll(collector.getEnabledSensors());
+        }
+        state.allSensors.addAll(derivedMetrics.getAvailableSensors());
+        state.activeSensors.addAll(derivedMetrics.getEnabledSensors());
+        state.samplingIntervals = sampler.getEffectiveIntervals();
+        state.pipeline = pipelineMetrics.snapshotAndReset();
+        state.collectorHealth = new ArrayList<>();
+        long now = SystemClock.uptimeMillis();
+        for (int i = 0; i < collectors.size(); i++) {
+            CollectorHealth.Snapshot health = collectorHealth.get(i).snapshotAndReset(now);
+            health.name = collectors.get(i).getAvailableSensors().toString();
+            state.collectorHealth.add(health);
+        }
+        String payload = MessagePayload.createDeviceStateUpdatePayload(state);
         Timber.d("Publishing device state: %s", payload);
         if (iotCoreClient == null) {
             Timber.w("Refusing to publishTelemetry device state because IotCoreClient is not yet active.");
@@ -203,58 +409,232 @@ public class SensorHub {
         iotCoreClient.publishDeviceState(payload.getBytes());
     }
 
-    private List<SensorData> collectCurrentSensorsReadings() {
+    private List<SensorData> collectCurrentSensorsReadings(long now) {
+        // start all collections first, so that their conversions overlap
+        List<CompletableFuture<List<SensorData>>> pending = new ArrayList<>();
+        HashSet<String> dueSensors = new HashSet<>();
+        // readings kept even if not due, e.g. peaks drained from a high-rate ring
+        HashSet<String> eventSensors = new HashSet<>();
+        boolean sensorsAppeared = false;
+        for (int i = 0; i < collectors.size(); i++) {
+            AsyncSensorCollector collector = collectors.get(i);
+            boolean due = false;
+            for (String sensor: collector.getEnabledSensors()) {
+                if (sampler.isDue(sensor, now)) {
+                    dueSensors.add(sensor);
+                    due = true;
+                }
+            }
+            // skip the bus transaction entirely if nothing is due or the collector is backing off
+            if (!due || !collectorHealth.get(i).allowAttempt(now)) {
+                pending.add(null);
+                continue;
+            }
+            try {
+                if (collector.activate()) {
+                    if (!configuredSensors.containsAll(collector.getAvailableSensors())) {
+                        sensorsAppeared = true;
+                    }
+                    eventSensors.addAll(collector.getEventSensors());
+                    pending.add(collector.collectRecentReadingsAsync());
+                    continue;
+                }
+                onCollectorFailure(i, now, "activation failed", null);
+            } catch (Throwable t) {
+                onCollectorFailure(i, now, String.valueOf(t), t);
+            }
+            pending.add(null);
+        }
+
         List<SensorData> sensorsData = new ArrayList<>();
-        for (SensorCollector collector: collectors) {
+        long deadline = SystemClock.uptimeMillis() + COLLECTION_TIMEOUT_MS;
+        for (int i = 0; i < pending.size(); i++) {
+            CompletableFuture<List<SensorData>> readings = pending.get(i);
+            if (readings == null) {
+                continue;
+            }
             try {
-                collector.activate();
-                collector.collectRecentReadings(sensorsData);
+                long timeout = Math.max(0, deadline - SystemClock.uptimeMillis());
+                for (SensorData data: readings.get(timeout, TimeUnit.MILLISECONDS)) {
+                    String sensor = data.getSensorName();
+                    if (dueSensors.contains(sensor) || eventSensors.contains(sensor)) {
+                        SensorData corrected = corrections.correct(data, now);
+                        sampler.onSampled(corrected.getSensorName(), now,
+                                corrected.getTimestamp(), corrected.getValue());
+                        sensorsData.add(corrected);
+                    }
+                }
+                if (collectorHealth.get(i).onSuccess(now)) {
+                    Timber.i("Collector of %s recovered", collectors.get(i).getAvailableSensors());
+                }
+            } catch (TimeoutException e) {
+                readings.cancel(false);
+                onCollectorFailure(i, now, "timed out", null);
+            } catch (ExecutionException e) {
+                onCollectorFailure(i, now, String.valueOf(e.getCause()), e.getCause());
             } catch (Throwable t) {
-                Timber.e(t,"Cannot collect recent readings of " +
-                        collector.getAvailableSensors() + ", will try again in the next run.");
+                onCollectorFailure(i, now, String.valueOf(t), t);
             }
         }
+        // computed after the corrections, from the readings of this run only
+        derivedMetrics.derive(sensorsData);
+        if (sensorsAppeared && appliedDeviceConfig != null) {
+            // e.g. humidity, which is known only once the chip has been identified;
+            // the sensors enabled now are sampled from the next run on
+            Timber.i("New sensors available, applying the device config again");
+            applyActiveSensors(appliedDeviceConfig);
+        }
         Timber.d("collected sensor data: %s", sensorsData);
         return sensorsData;
     }
 
+    /**
+     * Logs only the first failure of a series, with its stack trace, and the circuit
+     * opening, so a dead sensor does not flood the log.
+     */
+    private void onCollectorFailure(int index, long now, String error, Throwable t) {
+        CollectorHealth health = collectorHealth.get(index);
+        boolean log = health.onFailure(now, error);
+        boolean open = health.getState() == CollectorHealth.State.OPEN;
+        if (open) {
+            // the probe after the backoff then starts from a fresh activation,
+            // e.g. of a sensor which was replugged and lost its settings
+            collectors.get(index).closeQuietly();
+        }
+        if (!log) {
+            return;
+        }
+        List<String> sensors = collectors.get(index).getAvailableSensors();
+        if (open) {
+            Timber.w("Collector of %s keeps failing (%s), backing off for %d s",
+                    sensors, error, health.getBackoffMillis() / 1000);
+        } else {
+            Timber.w(t, "Cannot collect recent readings of %s (%s), will try again in the next run.",
+                    sensors, error);
+        }
+    }
+
     private void closeCollectors() {
-        for (SensorCollector collector: collectors) {
+        for (AsyncSensorCollector collector: collectors) {
             collector.closeQuietly();
         }
     }
 
     private void scheduleNextSensorCollection() {
+        List<String> enabledSensors = new ArrayList<>();
+        for (AsyncSensorCollector collector: collectors) {
+            enabledSensors.addAll(collector.getEnabledSensors());
+        }
+        long nextRun = sampler.getNextDue(enabledSensors, lastSampleRun);
+        recurrentTasksHandler.postAtTime(recurrentSampler, nextRun);
+    }
+
+    private void scheduleNextSummary() {
         long nextRun = TimerHelper.calculateNextRun(telemetryEventsPerHour, lastTelemetryRun);
-        recurrentTasksHandler.postAtTime(recurrentTelemetryPublisher, nextRun);
+        eventsHandler.postAtTime(recurrentSummaryPublisher, nextRun);
     }
 
     private void scheduleNextStatusUpdate() {
         long nextRun = TimerHelper.calculateNextRun(stateUpdatesPerHour, lastStateUpdateRun);
-        recurrentTasksHandler.postAtTime(stateUpdatePublisher, nextRun);
+        eventsHandler.postAtTime(stateUpdatePublisher, nextRun);
+    }
+
+    /**
+     * Called on the sampling thread. Never blocks: if the publishing thread falls behind,
+     * the batch is dropped and counted.
+     */
+    private void enqueueSamples(List<SensorData> readings) {
+        boolean accepted = sampleQueue.offer(new SampleBatch(readings));
+        pipelineMetrics.onOffer(accepted, sampleQueue.size());
+        if (!accepted) {
+            Timber.w("Sample queue full, dropping readings: %s", readings);
+        }
+        if (drainScheduled.compareAndSet(false, true)) {
+            eventsHandler.post(sampleQueueDrainer);
+        }
+    }
+
+    private void storeHistory(List<SensorData> readings) {
+        if (historyStore == null) {
+            return;
+        }
+        try {
+            historyStore.append(readings);
+        } catch (IOException e) {
+            Timber.e(e, "Cannot store readings in local history");
+        }
     }
 
-    private final Runnable recurrentTelemetryPublisher = new Runnable() {
+    private final Runnable sampleQueueDrainer = new Runnable() {
         @Override
         public void run() {
-            lastTelemetryRun = SystemClock.uptimeMillis();
+            drainScheduled.set(false);
+            SampleBatch batch;
+            while ((batch = sampleQueue.poll()) != null) {
+                pipelineMetrics.onDrain(batch);
+                if (batch.getReadings().isEmpty()) {
+                    continue;
+                }
+                aggregator.add(batch.getReadings());
+                storeHistory(batch.getReadings());
+                List<SensorData> readings = batch.getReadings();
+                if (publishMode == PublishMode.SUMMARY) {
+                    continue;
+                } else if (publishMode == PublishMode.DELTA) {
+                    readings = new ArrayList<>();
+                    deadbandFilter.filter(batch.getReadings(), readings);
+                    if (readings.isEmpty()) {
+                        continue;
+                    }
+                }
+                try {
+                    publishTelemetry(readings);
+                } catch (Throwable t) {
+                    Timber.e(t, "Cannot publish recurrent telemetry events, will try again later");
+                }
+            }
+        }
+    };
+
+    private final Runnable recurrentSampler = new Runnable() {
+        @Override
+        public void run() {
+            lastSampleRun = SystemClock.uptimeMillis();
             connectIfNeeded();
             if (TimerHelper.canExecute("Telemetry loop", ready.get())) {
                 try {
-                    List<SensorData> currentReadings = collectCurrentSensorsReadings();
-                    publishTelemetry(currentReadings);
+                    enqueueSamples(collectCurrentSensorsReadings(lastSampleRun));
                 } catch (Throwable t) {
-                    Timber.e(t, "Cannot publish recurrent telemetry events, will try again later");
+                    Timber.e(t, "Cannot collect recurrent telemetry events, will try again later");
                 }
             }
             scheduleNextSensorCollection();
         }
     };
 
+    private final Runnable recurrentSummaryPublisher = new Runnable() {
+        @Override
+        public void run() {
+            lastTelemetryRun = SystemClock.uptimeMillis();
+            if (publishMode != PublishMode.SUMMARY) {
+                return;
+            }
+            try {
+                publishSummary();
+            } catch (Throwable t) {
+                Timber.e(t, "Cannot publish telemetry summary, will try again later");
+            }
+            scheduleNextSummary();
+        }
+    };
+
     private final Runnable stateUpdatePublisher = new Runnable() {
         @Override
         public void run() {
             lastStateUpdateRun = SystemClock.uptimeMillis();
+            if (historyStore != null) {
+                historyStore.flush();
+            }
             connectIfNeeded();
             if (TimerHelper.canExecute("State update loop", ready.get())) {
                 try {
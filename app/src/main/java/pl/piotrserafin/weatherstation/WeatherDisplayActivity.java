@@ -7,22 +7,37 @@ import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.view.KeyEvent;
 
 import com.google.android.things.contrib.driver.button.Button;
 import com.google.android.things.contrib.driver.button.ButtonInputDriver;
 
+import java.io.File;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import pl.piotrserafin.weatherstation.api.OpenWeatherApiClient;
 import pl.piotrserafin.weatherstation.fsm.State;
 import pl.piotrserafin.weatherstation.fsm.StateContext;
 import pl.piotrserafin.weatherstation.gps.Gps;
+import pl.piotrserafin.weatherstation.history.HistoryQuery;
+import pl.piotrserafin.weatherstation.history.TimeSeriesStore;
 import pl.piotrserafin.weatherstation.iotcore.Parameters;
+import pl.piotrserafin.weatherstation.lcd.Glyph;
 import pl.piotrserafin.weatherstation.lcd.Lcd;
+import pl.piotrserafin.weatherstation.lcd.LcdDisplay;
+import pl.piotrserafin.weatherstation.lcd.LcdFrame;
+import pl.piotrserafin.weatherstation.lcd.LcdRenderer;
+import pl.piotrserafin.weatherstation.lcd.Marquee;
+import pl.piotrserafin.weatherstation.lcd.Pcf8574Lcd;
 import pl.piotrserafin.weatherstation.model.WeatherData;
 import pl.piotrserafin.weatherstation.sensor.Bme280Collector;
+import pl.piotrserafin.weatherstation.sensor.Bme280Discovery;
 import pl.piotrserafin.weatherstation.utils.AuthKeyGenerator;
 import pl.piotrserafin.weatherstation.utils.RpiSettings;
 import retrofit2.Call;
@@ -37,6 +52,14 @@ import timber.log.Timber;
 public class WeatherDisplayActivity extends Activity {
 
     private static final String CONFIG_SHARED_PREFERENCES_KEY = "cloud_iot_config";
+    private static final String HISTORY_DIRECTORY = "history";
+
+    // one sparkline cell per step, a full row covers the last 4 hours
+    private static final int TREND_POINTS = LcdFrame.COLUMNS;
+    private static final long TREND_STEP_MS = 15*60*1000L;
+    // smaller pressure changes over the trend are shown as steady [hPa]
+    private static final float TREND_STEADY_HPA = 0.5f;
+    private static final long TREND_REFRESH_MS = 60*1000L;
 
     public static final int UART_BAUD = 9600;
     public static final float ACCURACY = 2.5f;
@@ -45,11 +68,15 @@ public class WeatherDisplayActivity extends Activity {
     public static final double WROCLAW_LATITUDE = 51.099998;
     public static final double WROCLAW_LONGITUDE = 17.033331;
 
-    private Lcd lcd;
+    private LcdRenderer lcdRenderer;
     private Gps gps;
 
     private SensorHub sensorHub;
 
+    // history is read on its own thread, the FSM only shows the latest trend
+    private HandlerThread trendThread;
+    private final AtomicReference<float[]> pressureTrend = new AtomicReference<>();
+
     private Call<WeatherData> openWeatherCall;
     private Callback<WeatherData> moviesCallback;
 
@@ -65,6 +92,9 @@ public class WeatherDisplayActivity extends Activity {
 
     private boolean testData = false;
 
+    // delayed FSM steps, the main thread never sleeps
+    private final Handler uiHandler = new Handler();
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
 
@@ -118,11 +148,16 @@ public class WeatherDisplayActivity extends Activity {
 
         Timber.d("initLcd");
 
-        try {
-            lcd = new Lcd();
-        } catch (IOException e) {
-            Timber.e(e);
+        lcdRenderer = new LcdRenderer(this::openLcd);
+        lcdRenderer.start();
+    }
+
+    private LcdDisplay openLcd() throws IOException {
+        String lcdBus = RpiSettings.getLcdI2cBusName();
+        if (lcdBus != null) {
+            return new Pcf8574Lcd(lcdBus, RpiSettings.getLcdI2cAddress(), false);
         }
+        return new Lcd();
     }
 
     private void initGps() {
@@ -158,8 +193,26 @@ public class WeatherDisplayActivity extends Activity {
 
         sensorHub = new SensorHub(params);
 
-        sensorHub.registerSensorCollector(new Bme280Collector(
-                RpiSettings.getI2cBusName()));
+        List<Bme280Collector> bme280Collectors =
+                Bme280Discovery.discover(RpiSettings.getI2cBusNames());
+        if (bme280Collectors.isEmpty()) {
+            Timber.w("No BME280 found, trying the default address");
+            bme280Collectors.add(new Bme280Collector(RpiSettings.getI2cBusName()));
+        }
+        for (Bme280Collector collector : bme280Collectors) {
+            sensorHub.registerSensorCollector(collector);
+        }
+
+        stopPressureTrend();
+        try {
+            TimeSeriesStore historyStore = new TimeSeriesStore(
+                    new File(getExternalFilesDir(null), HISTORY_DIRECTORY));
+            historyStore.startMaintenance();
+            sensorHub.setHistoryStore(historyStore);
+            startPressureTrend(historyStore, bme280Collectors.get(0).getPressureSensorName());
+        } catch (IOException e) {
+            Timber.e(e, "Cannot open local sensor history, continuing without it");
+        }
 
         try {
             sensorHub.start();
@@ -198,11 +251,7 @@ public class WeatherDisplayActivity extends Activity {
 
             @Override
             public void onFailure(Call<WeatherData> openWeatherCall, Throwable t) {
-                setLcdClear();
-                setLcdPosition(0,0);
-                setLcdMessage("Failed to fetch");
-                setLcdPosition(1,0);
-                setLcdMessage("Weather Data...");
+                setLcdText("Failed to fetch", "Weather Data...");
 
                 stateContext.setState(new StateStop());
                 stateContext.takeAction();
@@ -285,38 +334,86 @@ public class WeatherDisplayActivity extends Activity {
     };
 
     /////////////////////////////LCD stuff/////////////////////////
-    private void setLcdClear() {
-        try {
-            lcd.clearDisplay();
-        } catch (IOException e) {
-            Timber.e(e);
+    private void setLcdText(String firstRow, String secondRow) {
+        if (lcdRenderer == null) {
+            return;
+        }
+        // city names and descriptions may not fit, those rows scroll
+        if (Marquee.isNeeded(firstRow, secondRow)) {
+            lcdRenderer.submit(new Marquee(firstRow, secondRow));
+        } else {
+            lcdRenderer.submit(new LcdFrame(firstRow, secondRow));
         }
     }
 
-    private void setLcdPosition(int row, int col) {
-        try {
-            lcd.setPosition(row, col);
-        } catch (IOException e) {
-            Timber.e(e);
-        }
+    /**
+     * Refreshes {@link #pressureTrend} periodically on a background thread, so showing it
+     * never reads the history on the main thread.
+     */
+    private void startPressureTrend(TimeSeriesStore historyStore, String sensor) {
+        trendThread = new HandlerThread("PressureTrendThread");
+        trendThread.start();
+        Handler trendHandler = new Handler(trendThread.getLooper());
+        trendHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                pressureTrend.set(readPressureTrend(historyStore, sensor));
+                trendHandler.postDelayed(this, TREND_REFRESH_MS);
+            }
+        });
     }
 
-    private void setLcdMessage(String message) {
-        try {
-            lcd.setText(message);
-        } catch (IOException e) {
-            Timber.e(e);
+    private void stopPressureTrend() {
+        if (trendThread != null) {
+            trendThread.quitSafely();
+            trendThread = null;
         }
+        pressureTrend.set(null);
+    }
+
+    /**
+     * Local pressure of the last {@link #TREND_POINTS} steps, NaN where nothing was recorded,
+     * or null if nothing was.
+     */
+    private static float[] readPressureTrend(TimeSeriesStore historyStore, String sensor) {
+        // aligned to the query buckets, the last one is the current step
+        long from = Math.floorDiv(System.currentTimeMillis(), TREND_STEP_MS) * TREND_STEP_MS -
+                (TREND_POINTS - 1) * TREND_STEP_MS;
+        float[] trend = new float[TREND_POINTS];
+        Arrays.fill(trend, Float.NaN);
+        int[] points = new int[1];
+        historyStore.query(new HistoryQuery(sensor, from, from + TREND_POINTS * TREND_STEP_MS,
+                HistoryQuery.Aggregation.MEAN, TREND_STEP_MS), (timestamp, value) -> {
+            // the clock may have moved on since the range was computed
+            long index = Math.floorDiv(timestamp - from, TREND_STEP_MS);
+            if (index >= 0 && index < TREND_POINTS && !Float.isNaN(value)) {
+                trend[(int) index] = value;
+                points[0]++;
+            }
+        });
+        return points[0] > 0 ? trend : null;
     }
-    ///////////////////////////////////////////////////////////////
 
-    private void sleep(long ms) {
-        try {
-            Thread.sleep(ms);
-        } catch (InterruptedException e) {
-            Timber.e(e);
+    private static char trendArrow(float[] trend) {
+        float first = Float.NaN;
+        float last = Float.NaN;
+        for (float value : trend) {
+            if (!Float.isNaN(value)) {
+                if (Float.isNaN(first)) {
+                    first = value;
+                }
+                last = value;
+            }
+        }
+        if (last - first >= TREND_STEADY_HPA) {
+            return Glyph.ARROW_UP.getCode();
+        }
+        if (first - last >= TREND_STEADY_HPA) {
+            return Glyph.ARROW_DOWN.getCode();
         }
+        return '=';
     }
+    ///////////////////////////////////////////////////////////////
 
     ///////////////////////FSM States!!!///////////////////////////
     public class StateStart extends State {
@@ -337,16 +434,12 @@ public class WeatherDisplayActivity extends Activity {
         public void takeAction(StateContext stateContext) {
             stateContext.setState(new StateFetchGpsData());
 
-            setLcdClear();
-            setLcdPosition(0,0);
-            setLcdMessage("Waiting for");
-            setLcdPosition(1,0);
-            setLcdMessage("GPS Data...");
-
-            sleep(3000);
+            setLcdText("Waiting for", "GPS Data...");
 
-            startFetchingGpsData();
-            startButtonListener();
+            uiHandler.postDelayed(() -> {
+                startFetchingGpsData();
+                startButtonListener();
+            }, 3000);
         }
     }
 
@@ -359,22 +452,18 @@ public class WeatherDisplayActivity extends Activity {
             stopFetchingGpsData();
             stopButtonListener();
 
+            long noticeMillis = 0;
             if(testData) {
-                setLcdClear();
-                setLcdPosition(0,0);
-                setLcdMessage("Test Data Used");
-                sleep(2000);
+                setLcdText("Test Data Used", "");
+                noticeMillis = 2000;
             }
 
-            setLcdClear();
-            setLcdPosition(0,0);
-            setLcdMessage("Waiting for");
-            setLcdPosition(1,0);
-            setLcdMessage("Weather Data...");
-
-            sleep(3000);
+            uiHandler.postDelayed(() -> {
+                setLcdText("Waiting for", "Weather Data...");
 
-            startFetchingWeatherData();
+                uiHandler.postDelayed(WeatherDisplayActivity.this::startFetchingWeatherData,
+                        3000);
+            }, noticeMillis);
         }
     }
 
@@ -385,14 +474,10 @@ public class WeatherDisplayActivity extends Activity {
             stateContext.setState(new StateShowWeatherDataName());
             stopFetchingWeatherData();
 
-            sleep(2000);
-
-            setLcdClear();
-            setLcdPosition(0,0);
-            setLcdMessage("Weather Ready");
-            setLcdPosition(1,0);
-            setLcdMessage("Press Button");
-            startButtonListener();
+            uiHandler.postDelayed(() -> {
+                setLcdText("Weather Ready", "Press Button");
+                startButtonListener();
+            }, 2000);
         }
     }
 
@@ -401,11 +486,7 @@ public class WeatherDisplayActivity extends Activity {
         @Override
         public void takeAction(StateContext stateContext) {
             stateContext.setState(new StateShowWeatherDataCoord());
-            setLcdClear();
-            setLcdPosition(0,0);
-            setLcdMessage("City:");
-            setLcdPosition(1,0);
-            setLcdMessage(weatherData.getName());
+            setLcdText("City:", weatherData.getName());
         }
     }
 
@@ -414,13 +495,10 @@ public class WeatherDisplayActivity extends Activity {
         @Override
         public void takeAction(StateContext stateContext) {
             stateContext.setState(new StateShowWeatherDataDesc());
-            setLcdClear();
-            setLcdPosition(0,0);
-            setLcdMessage("Coordinates:");
-            setLcdPosition(1,0);
-            setLcdMessage(String.format("%5.2f %5.2f",
-                    weatherData.getCoord().getLat(),
-                    weatherData.getCoord().getLon()));
+            setLcdText("Coordinates:",
+                    String.format("%5.2f %5.2f",
+                            weatherData.getCoord().getLat(),
+                            weatherData.getCoord().getLon()));
         }
     }
 
@@ -429,11 +507,7 @@ public class WeatherDisplayActivity extends Activity {
         @Override
         public void takeAction(StateContext stateContext) {
             stateContext.setState(new StateShowWeatherTemp());
-            setLcdClear();
-            setLcdPosition(0,0);
-            setLcdMessage("Description:");
-            setLcdPosition(1,0);
-            setLcdMessage(weatherData.getWeather().get(0).getDescription());
+            setLcdText("Description:", weatherData.getWeather().get(0).getDescription());
         }
     }
 
@@ -442,24 +516,32 @@ public class WeatherDisplayActivity extends Activity {
         @Override
         public void takeAction(StateContext stateContext) {
             stateContext.setState(new StateShowWeatherDataPressureAndHumidity());
-            setLcdClear();
-            setLcdPosition(0,0);
-            setLcdMessage("Temp: ");
-            setLcdPosition(1,0);
-            setLcdMessage(String.format("%5.2f C",weatherData.getMain().getTemp() - 273.0));
+            setLcdText("Temp: ", String.format("%5.2f", weatherData.getMain().getTemp() - 273.0) +
+                    Glyph.DEGREE.getCode() + "C");
         }
     }
 
     public class StateShowWeatherDataPressureAndHumidity extends State {
 
+        @Override
+        public void takeAction(StateContext stateContext) {
+            stateContext.setState(new StateShowPressureTrend());
+            setLcdText(String.format("P: %6.2f hPa", weatherData.getMain().getPressure()),
+                    String.format("H: %5.2f %%",weatherData.getMain().getHumidity()));
+        }
+    }
+
+    public class StateShowPressureTrend extends State {
+
         @Override
         public void takeAction(StateContext stateContext) {
             stateContext.setState(new StateShowWeatherDataName());
-            setLcdClear();
-            setLcdPosition(0,0);
-            setLcdMessage(String.format("P: %6.2f hPa", weatherData.getMain().getPressure()));
-            setLcdPosition(1,0);
-            setLcdMessage(String.format("H: %5.2f %%",weatherData.getMain().getHumidity()));
+            float[] trend = pressureTrend.get();
+            if (trend == null) {
+                setLcdText("Local P 4h:", "No history yet");
+                return;
+            }
+            setLcdText("Local P 4h: " + trendArrow(trend), Glyph.sparkline(trend));
         }
     }
 
@@ -467,6 +549,7 @@ public class WeatherDisplayActivity extends Activity {
 
         @Override
         public void takeAction(StateContext stateContext) {
+            uiHandler.removeCallbacksAndMessages(null);
             stopButtonListener();
             closeButton();
             closeGps();
@@ -479,13 +562,9 @@ public class WeatherDisplayActivity extends Activity {
 
     private void closeLcd() {
 
-        try {
-            if (lcd != null) {
-                lcd.clearDisplay();
-                lcd.close();
-            }
-        } catch (IOException e) {
-            Timber.e(e);
+        if (lcdRenderer != null) {
+            lcdRenderer.stop();
+            lcdRenderer = null;
         }
     }
 
@@ -518,6 +597,7 @@ public class WeatherDisplayActivity extends Activity {
     }
 
     private void closeSensorHub() {
+        stopPressureTrend();
         if(sensorHub != null) {
             sensorHub.stop();
         }
@@ -527,6 +607,8 @@ public class WeatherDisplayActivity extends Activity {
     protected void onPause() {
         super.onPause();
         Timber.d("onPause");
+        // the hub closes the history store
+        stopPressureTrend();
         if (sensorHub != null) {
             sensorHub.stop();
         }
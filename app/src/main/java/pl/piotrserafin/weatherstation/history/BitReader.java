@@ -0,0 +1,42 @@
+package pl.piotrserafin.weatherstation.history;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads bits written by {@link BitWriter}.
+ */
+class BitReader {
+
+    private final ByteBuffer buffer;
+    private final int offset;
+    private int bitPosition;
+
+    BitReader(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+    }
+
+    boolean readBit() {
+        int value = buffer.get(offset + (bitPosition >>> 3)) & (0x80 >>> (bitPosition & 7));
+        bitPosition++;
+        return value != 0;
+    }
+
+    int getBitPosition() {
+        return bitPosition;
+    }
+
+    long readBits(int bits) {
+        long value = 0;
+        while (bits > 0) {
+            int available = 8 - (bitPosition & 7);
+            int chunk = Math.min(available, bits);
+            int current = buffer.get(offset + (bitPosition >>> 3)) & 0xFF;
+            int part = (current >>> (available - chunk)) & ((1 << chunk) - 1);
+            value = (value << chunk) | part;
+            bitPosition += chunk;
+            bits -= chunk;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,70 @@
+package pl.piotrserafin.weatherstation.history;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Appends bits, most significant first, into a zero filled region of a buffer. Every bit is
+ * stored as soon as it is written, so the buffer is always consistent with
+ * {@link #getBitPosition()}.
+ */
+class BitWriter {
+
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final int capacityBits;
+    private int bitPosition;
+
+    BitWriter(ByteBuffer buffer, int offset, int capacityBytes) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.capacityBits = capacityBytes * 8;
+    }
+
+    void writeBit(boolean bit) {
+        if (bit) {
+            int index = offset + (bitPosition >>> 3);
+            buffer.put(index, (byte) (buffer.get(index) | (0x80 >>> (bitPosition & 7))));
+        }
+        bitPosition++;
+    }
+
+    void writeBits(long value, int bits) {
+        while (bits > 0) {
+            int free = 8 - (bitPosition & 7);
+            int chunk = Math.min(free, bits);
+            int shifted = (int) ((value >>> (bits - chunk)) & ((1 << chunk) - 1));
+            if (shifted != 0) {
+                int index = offset + (bitPosition >>> 3);
+                buffer.put(index, (byte) (buffer.get(index) | (shifted << (free - chunk))));
+            }
+            bitPosition += chunk;
+            bits -= chunk;
+        }
+    }
+
+    /**
+     * Continues after {@code bitPosition} bits already in the buffer, e.g. written by an
+     * earlier run. Whatever follows them is cleared, so bits of an interrupted write do not
+     * corrupt the ones appended next.
+     */
+    void resumeAt(int bitPosition) {
+        this.bitPosition = bitPosition;
+        int index = offset + (bitPosition >>> 3);
+        if ((bitPosition & 7) != 0) {
+            buffer.put(index, (byte) (buffer.get(index) & (0xFF00 >>> (bitPosition & 7))));
+            index++;
+        }
+        int end = offset + capacityBits / 8;
+        for (; index < end; index++) {
+            buffer.put(index, (byte) 0);
+        }
+    }
+
+    int getBitPosition() {
+        return bitPosition;
+    }
+
+    int getRemainingBits() {
+        return capacityBits - bitPosition;
+    }
+}
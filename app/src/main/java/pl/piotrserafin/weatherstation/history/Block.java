@@ -0,0 +1,284 @@
+package pl.piotrserafin.weatherstation.history;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of a fixed size block of Gorilla compressed samples: a header with the sample count,
+ * time range, value range and encoded length, followed by delta-of-delta encoded timestamps
+ * interleaved with XOR encoded float values. The header is rewritten after every append, so
+ * a block is readable at any point.
+ */
+final class Block {
+
+    static final int SIZE = 4096;
+    static final int HEADER_SIZE = 32;
+    static final int PAYLOAD_SIZE = SIZE - HEADER_SIZE;
+
+    private static final int COUNT = 0;
+    private static final int FIRST_TIMESTAMP = 4;
+    private static final int LAST_TIMESTAMP = 12;
+    private static final int MIN = 20;
+    private static final int MAX = 24;
+    private static final int BIT_LENGTH = 28;
+
+    private Block() {
+    }
+
+    static int getCount(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + COUNT);
+    }
+
+    static long getFirstTimestamp(ByteBuffer buffer, int offset) {
+        return buffer.getLong(offset + FIRST_TIMESTAMP);
+    }
+
+    static long getLastTimestamp(ByteBuffer buffer, int offset) {
+        return buffer.getLong(offset + LAST_TIMESTAMP);
+    }
+
+    static float getMin(ByteBuffer buffer, int offset) {
+        return buffer.getFloat(offset + MIN);
+    }
+
+    static float getMax(ByteBuffer buffer, int offset) {
+        return buffer.getFloat(offset + MAX);
+    }
+
+    /**
+     * Compresses samples into one block. Samples must be appended in timestamp order.
+     */
+    static class Writer {
+        // worst case: 4 + 32 bits of timestamp, 2 + 5 + 5 + 32 bits of value
+        private static final int MAX_SAMPLE_BITS = 80;
+
+        private final ByteBuffer buffer;
+        private final int offset;
+        private final BitWriter bits;
+
+        private int count;
+        private long firstTimestamp;
+        private long lastTimestamp;
+        private long lastDelta;
+        private int lastValueBits;
+        private int lastLeadingZeros = Integer.MAX_VALUE;
+        private int lastTrailingZeros;
+        private float min = Float.POSITIVE_INFINITY;
+        private float max = Float.NEGATIVE_INFINITY;
+
+        Writer(ByteBuffer buffer, int offset) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.bits = new BitWriter(buffer, offset + HEADER_SIZE, PAYLOAD_SIZE);
+        }
+
+        /**
+         * Continues a partially filled block, e.g. the last one written before a restart.
+         * The samples are decoded once to restore the encoder state.
+         */
+        static Writer resume(ByteBuffer buffer, int offset) {
+            Writer writer = new Writer(buffer, offset);
+            Reader reader = new Reader(buffer, offset);
+            while (reader.next()) {
+                writer.count++;
+            }
+            if (writer.count == 0) {
+                writer.bits.resumeAt(0);
+                return writer;
+            }
+            writer.firstTimestamp = getFirstTimestamp(buffer, offset);
+            writer.lastTimestamp = reader.timestamp;
+            writer.lastDelta = reader.delta;
+            writer.lastValueBits = reader.valueBits;
+            if (reader.hasWindow) {
+                writer.lastLeadingZeros = reader.leadingZeros;
+                writer.lastTrailingZeros = reader.trailingZeros;
+            }
+            writer.min = Block.getMin(buffer, offset);
+            writer.max = Block.getMax(buffer, offset);
+            writer.bits.resumeAt(reader.bits.getBitPosition());
+            return writer;
+        }
+
+        /**
+         * Returns false if the sample does not fit, the block is then full.
+         */
+        boolean append(long timestamp, float value) {
+            if (bits.getRemainingBits() < MAX_SAMPLE_BITS + (count == 0 ? 64 : 0)) {
+                return false;
+            }
+            if (count == 0) {
+                bits.writeBits(timestamp, 64);
+                bits.writeBits(Float.floatToRawIntBits(value), 32);
+                firstTimestamp = timestamp;
+                lastValueBits = Float.floatToRawIntBits(value);
+            } else {
+                long delta = timestamp - lastTimestamp;
+                long deltaOfDelta = delta - lastDelta;
+                if (deltaOfDelta < Integer.MIN_VALUE || deltaOfDelta > Integer.MAX_VALUE) {
+                    return false;
+                }
+                writeTimestamp(deltaOfDelta);
+                writeValue(Float.floatToRawIntBits(value));
+                lastDelta = delta;
+            }
+            lastTimestamp = timestamp;
+            count++;
+            if (value < min) {
+                min = value;
+            }
+            if (value > max) {
+                max = value;
+            }
+            writeHeader();
+            return true;
+        }
+
+        private void writeTimestamp(long deltaOfDelta) {
+            if (deltaOfDelta == 0) {
+                bits.writeBit(false);
+            } else if (deltaOfDelta >= -64 && deltaOfDelta <= 63) {
+                bits.writeBits(0b10, 2);
+                bits.writeBits(deltaOfDelta, 7);
+            } else if (deltaOfDelta >= -256 && deltaOfDelta <= 255) {
+                bits.writeBits(0b110, 3);
+                bits.writeBits(deltaOfDelta, 9);
+            } else if (deltaOfDelta >= -2048 && deltaOfDelta <= 2047) {
+                bits.writeBits(0b1110, 4);
+                bits.writeBits(deltaOfDelta, 12);
+            } else {
+                bits.writeBits(0b1111, 4);
+                bits.writeBits(deltaOfDelta, 32);
+            }
+        }
+
+        private void writeValue(int valueBits) {
+            int xor = valueBits ^ lastValueBits;
+            lastValueBits = valueBits;
+            if (xor == 0) {
+                bits.writeBit(false);
+                return;
+            }
+            bits.writeBit(true);
+            int leadingZeros = Math.min(Integer.numberOfLeadingZeros(xor), 31);
+            int trailingZeros = Integer.numberOfTrailingZeros(xor);
+            if (leadingZeros >= lastLeadingZeros && trailingZeros >= lastTrailingZeros) {
+                // meaningful bits fit into the previous window
+                bits.writeBit(false);
+                int length = 32 - lastLeadingZeros - lastTrailingZeros;
+                bits.writeBits(xor >>> lastTrailingZeros, length);
+            } else {
+                bits.writeBit(true);
+                int length = 32 - leadingZeros - trailingZeros;
+                bits.writeBits(leadingZeros, 5);
+                bits.writeBits(length - 1, 5);
+                bits.writeBits(xor >>> trailingZeros, length);
+                lastLeadingZeros = leadingZeros;
+                lastTrailingZeros = trailingZeros;
+            }
+        }
+
+        private void writeHeader() {
+            buffer.putLong(offset + FIRST_TIMESTAMP, firstTimestamp);
+            buffer.putLong(offset + LAST_TIMESTAMP, lastTimestamp);
+            buffer.putFloat(offset + MIN, min);
+            buffer.putFloat(offset + MAX, max);
+            buffer.putInt(offset + BIT_LENGTH, bits.getBitPosition());
+            // count last, a reader never sees a sample whose bits are not there yet
+            buffer.putInt(offset + COUNT, count);
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        long getLastTimestamp() {
+            return lastTimestamp;
+        }
+
+        float getMin() {
+            return min;
+        }
+
+        float getMax() {
+            return max;
+        }
+    }
+
+    /**
+     * Iterates over the samples of one block.
+     */
+    static class Reader {
+        private final BitReader bits;
+        private final int count;
+
+        private int position;
+        private long timestamp;
+        private long delta;
+        private int valueBits;
+        private int leadingZeros;
+        private int trailingZeros;
+        private boolean hasWindow;
+
+        Reader(ByteBuffer buffer, int offset) {
+            this.bits = new BitReader(buffer, offset + HEADER_SIZE);
+            this.count = getCount(buffer, offset);
+        }
+
+        boolean next() {
+            if (position >= count) {
+                return false;
+            }
+            if (position == 0) {
+                timestamp = bits.readBits(64);
+                valueBits = (int) bits.readBits(32);
+            } else {
+                delta += readDeltaOfDelta();
+                timestamp += delta;
+                readValue();
+            }
+            position++;
+            return true;
+        }
+
+        private long readDeltaOfDelta() {
+            if (!bits.readBit()) {
+                return 0;
+            } else if (!bits.readBit()) {
+                return signExtend(bits.readBits(7), 7);
+            } else if (!bits.readBit()) {
+                return signExtend(bits.readBits(9), 9);
+            } else if (!bits.readBit()) {
+                return signExtend(bits.readBits(12), 12);
+            }
+            return signExtend(bits.readBits(32), 32);
+        }
+
+        private static long signExtend(long value, int bits) {
+            long shift = 64 - bits;
+            return (value << shift) >> shift;
+        }
+
+        private void readValue() {
+            if (!bits.readBit()) {
+                return;
+            }
+            if (bits.readBit()) {
+                hasWindow = true;
+                leadingZeros = (int) bits.readBits(5);
+                int length = (int) bits.readBits(5) + 1;
+                trailingZeros = 32 - leadingZeros - length;
+            }
+            int length = 32 - leadingZeros - trailingZeros;
+            int xor = (int) bits.readBits(length) << trailingZeros;
+            valueBits ^= xor;
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        float getValue() {
+            return Float.intBitsToFloat(valueBits);
+        }
+    }
+}
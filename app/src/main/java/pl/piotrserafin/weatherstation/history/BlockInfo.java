@@ -0,0 +1,36 @@
+package pl.piotrserafin.weatherstation.history;
+
+/**
+ * In-memory index entry of one block: where it lives and what it covers, so queries can
+ * skip blocks without decoding them.
+ */
+class BlockInfo {
+    final MappedSegment segment;
+    final int offset;
+
+    int count;
+    long firstTimestamp;
+    long lastTimestamp;
+    float min;
+    float max;
+
+    BlockInfo(MappedSegment segment, int offset) {
+        this.segment = segment;
+        this.offset = offset;
+        this.count = Block.getCount(segment.getBuffer(), offset);
+        if (count > 0) {
+            this.firstTimestamp = Block.getFirstTimestamp(segment.getBuffer(), offset);
+            this.lastTimestamp = Block.getLastTimestamp(segment.getBuffer(), offset);
+            this.min = Block.getMin(segment.getBuffer(), offset);
+            this.max = Block.getMax(segment.getBuffer(), offset);
+        }
+    }
+
+    boolean overlaps(long from, long to) {
+        return count > 0 && lastTimestamp >= from && firstTimestamp < to;
+    }
+
+    Block.Reader reader() {
+        return new Block.Reader(segment.getBuffer(), offset);
+    }
+}
@@ -0,0 +1,81 @@
+package pl.piotrserafin.weatherstation.history;
+
+/**
+ * Range query over the local history of one sensor: points in [from, to), aggregated into
+ * buckets of {@code stepMillis}. A step of 0 returns the raw samples.
+ */
+public class HistoryQuery {
+
+    public enum Aggregation {
+        MIN, MAX, MEAN, LAST, COUNT
+    }
+
+    /**
+     * Receives the points of a query in timestamp order, as they are read.
+     */
+    public interface Callback {
+        void onPoint(long timestamp, float value);
+    }
+
+    private final String sensorName;
+    private final long from;
+    private final long to;
+    private final Aggregation aggregation;
+    private final long stepMillis;
+
+    public HistoryQuery(String sensorName, long from, long to, Aggregation aggregation,
+                        long stepMillis) {
+        if (to < from || stepMillis < 0) {
+            throw new IllegalArgumentException("Invalid query range or step");
+        }
+        this.sensorName = sensorName;
+        this.from = from;
+        this.to = to;
+        this.aggregation = aggregation;
+        this.stepMillis = stepMillis;
+    }
+
+    public String getSensorName() {
+        return sensorName;
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    public Aggregation getAggregation() {
+        return aggregation;
+    }
+
+    public long getStepMillis() {
+        return stepMillis;
+    }
+
+    /**
+     * The coarsest tier whose buckets still fit into one step, or null for raw samples.
+     */
+    RollupTier selectTier() {
+        RollupTier selected = null;
+        for (RollupTier tier : RollupTier.values()) {
+            if (stepMillis >= tier.getBucketMillis() && stepMillis % tier.getBucketMillis() == 0) {
+                selected = tier;
+            }
+        }
+        return selected;
+    }
+
+    @Override
+    public String toString() {
+        return "HistoryQuery{" +
+                "sensorName='" + sensorName + '\'' +
+                ", from=" + from +
+                ", to=" + to +
+                ", aggregation=" + aggregation +
+                ", stepMillis=" + stepMillis +
+                '}';
+    }
+}
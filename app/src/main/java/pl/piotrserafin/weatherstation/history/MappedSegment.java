@@ -0,0 +1,101 @@
+package pl.piotrserafin.weatherstation.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fixed size, memory mapped, append-only file named after the timestamp of its first entry.
+ * Segments are never rewritten; old data is dropped by deleting whole segments. A deleted
+ * segment drops its mapping, which is released once the buffer is collected; there is no
+ * public API to unmap it right away.
+ */
+class MappedSegment {
+
+    private static final String SUFFIX = ".seg";
+
+    private final File file;
+    private final long firstTimestamp;
+    private MappedByteBuffer buffer;
+
+    private MappedSegment(File file, long firstTimestamp, int size) throws IOException {
+        this.file = file;
+        this.firstTimestamp = firstTimestamp;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() != size) {
+                raf.setLength(size);
+            }
+            // the mapping stays valid after the channel is closed
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    static MappedSegment create(File directory, long firstTimestamp, int size)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        return new MappedSegment(new File(directory, firstTimestamp + SUFFIX),
+                firstTimestamp, size);
+    }
+
+    /**
+     * Maps all segments of a directory, ordered by their first timestamp.
+     */
+    static List<MappedSegment> openAll(File directory, int size) throws IOException {
+        List<MappedSegment> segments = new ArrayList<>();
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return segments;
+        }
+        long[] timestamps = new long[files.length];
+        int count = 0;
+        for (File file : files) {
+            String name = file.getName();
+            try {
+                timestamps[count++] = Long.parseLong(
+                        name.substring(0, name.length() - SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                count--;
+            }
+        }
+        Arrays.sort(timestamps, 0, count);
+        for (int i = 0; i < count; i++) {
+            File file = new File(directory, timestamps[i] + SUFFIX);
+            if (file.length() != size) {
+                throw new IOException("Unexpected size of segment " + file);
+            }
+            segments.add(new MappedSegment(file, timestamps[i], size));
+        }
+        return segments;
+    }
+
+    MappedByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    void flush() {
+        buffer.force();
+    }
+
+    /**
+     * Deletes the file and drops the mapping, the segment must not be used afterwards.
+     */
+    boolean delete() {
+        buffer = null;
+        return file.delete();
+    }
+}
@@ -0,0 +1,83 @@
+package pl.piotrserafin.weatherstation.history;
+
+/**
+ * Aggregate of all samples in one bucket of a {@link RollupTier}. Mutable so it can be
+ * reused as an accumulator and while iterating.
+ */
+public class RollupRecord {
+    long bucketStart;
+    int count;
+    float min;
+    float max;
+    double sum;
+    float last;
+
+    void reset(long bucketStart) {
+        this.bucketStart = bucketStart;
+        count = 0;
+        min = Float.POSITIVE_INFINITY;
+        max = Float.NEGATIVE_INFINITY;
+        sum = 0;
+        last = Float.NaN;
+    }
+
+    /**
+     * NaN readings, e.g. of a channel which has not converted yet, are skipped so they do not
+     * poison the coarser tiers merged from this record.
+     */
+    void add(float value) {
+        if (Float.isNaN(value)) {
+            return;
+        }
+        count++;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+        sum += value;
+        last = value;
+    }
+
+    void merge(RollupRecord other) {
+        if (other.count == 0) {
+            return;
+        }
+        count += other.count;
+        if (other.min < min) {
+            min = other.min;
+        }
+        if (other.max > max) {
+            max = other.max;
+        }
+        sum += other.sum;
+        if (!Float.isNaN(other.last)) {
+            last = other.last;
+        }
+    }
+
+    public long getBucketStart() {
+        return bucketStart;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public float getMin() {
+        return min;
+    }
+
+    public float getMax() {
+        return max;
+    }
+
+    public float getMean() {
+        return count == 0 ? Float.NaN : (float) (sum / count);
+    }
+
+    public float getLast() {
+        return last;
+    }
+}
@@ -0,0 +1,193 @@
+package pl.piotrserafin.weatherstation.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * One rollup tier of one sensor: fixed size aggregate records in append-only segments.
+ * A record with a zero count marks the end of the written part of a segment.
+ */
+class RollupSeries {
+
+    static final int RECORD_SIZE = 32;
+    static final int RECORDS_PER_SEGMENT = 1024;
+    static final int SEGMENT_SIZE = RECORD_SIZE * RECORDS_PER_SEGMENT;
+
+    private static final int BUCKET_START = 0;
+    private static final int COUNT = 8;
+    private static final int MIN = 12;
+    private static final int MAX = 16;
+    private static final int LAST = 20;
+    private static final int SUM = 24;
+
+    interface RecordConsumer {
+        void accept(RollupRecord record);
+    }
+
+    private final RollupTier tier;
+    private final File directory;
+    private final List<MappedSegment> segments;
+
+    private MappedSegment currentSegment;
+    private int nextRecord;
+    private long lastBucketStart = Long.MIN_VALUE;
+
+    RollupSeries(RollupTier tier, File directory) throws IOException {
+        this.tier = tier;
+        this.directory = directory;
+        this.segments = MappedSegment.openAll(directory, SEGMENT_SIZE);
+        if (!segments.isEmpty()) {
+            currentSegment = segments.get(segments.size() - 1);
+            ByteBuffer buffer = currentSegment.getBuffer();
+            while (nextRecord < RECORDS_PER_SEGMENT &&
+                    buffer.getInt(nextRecord * RECORD_SIZE + COUNT) > 0) {
+                lastBucketStart = buffer.getLong(nextRecord * RECORD_SIZE + BUCKET_START);
+                nextRecord++;
+            }
+        }
+    }
+
+    RollupTier getTier() {
+        return tier;
+    }
+
+    synchronized void append(RollupRecord record) throws IOException {
+        if (record.count == 0 || record.bucketStart <= lastBucketStart) {
+            return;
+        }
+        if (currentSegment == null || nextRecord >= RECORDS_PER_SEGMENT) {
+            if (currentSegment != null) {
+                currentSegment.flush();
+            }
+            currentSegment = MappedSegment.create(directory, record.bucketStart, SEGMENT_SIZE);
+            segments.add(currentSegment);
+            nextRecord = 0;
+        }
+        ByteBuffer buffer = currentSegment.getBuffer();
+        int offset = nextRecord * RECORD_SIZE;
+        buffer.putLong(offset + BUCKET_START, record.bucketStart);
+        buffer.putFloat(offset + MIN, record.min);
+        buffer.putFloat(offset + MAX, record.max);
+        buffer.putFloat(offset + LAST, record.last);
+        buffer.putDouble(offset + SUM, record.sum);
+        // count last, it marks the record as written
+        buffer.putInt(offset + COUNT, record.count);
+        nextRecord++;
+        lastBucketStart = record.bucketStart;
+    }
+
+    /**
+     * Start of the first bucket not materialized yet, or {@link Long#MIN_VALUE} if the tier
+     * is empty.
+     */
+    synchronized long getNextBucketStart() {
+        return lastBucketStart == Long.MIN_VALUE ? Long.MIN_VALUE :
+                lastBucketStart + tier.getBucketMillis();
+    }
+
+    synchronized long getFirstBucketStart() {
+        if (segments.isEmpty()) {
+            return Long.MIN_VALUE;
+        }
+        return segments.get(0).getBuffer().getLong(BUCKET_START);
+    }
+
+    /**
+     * Visits records with a bucket start in [from, to). The record passed to the consumer
+     * is reused. Each segment is copied under the lock and read outside of it, so a slow
+     * consumer does not hold up appends.
+     */
+    void forEach(long from, long to, RecordConsumer consumer) {
+        RollupRecord record = new RollupRecord();
+        ByteBuffer buffer = ByteBuffer.allocate(SEGMENT_SIZE);
+        while (from < to) {
+            long nextSegmentStart;
+            synchronized (this) {
+                if (segments.isEmpty()) {
+                    return;
+                }
+                int s = findSegment(from);
+                MappedSegment segment = segments.get(s);
+                if (segment.getFirstTimestamp() >= to) {
+                    return;
+                }
+                nextSegmentStart = s + 1 < segments.size() ?
+                        segments.get(s + 1).getFirstTimestamp() : Long.MAX_VALUE;
+                ByteBuffer source = segment.getBuffer().duplicate();
+                source.clear();
+                buffer.clear();
+                buffer.put(source);
+            }
+            forEachRecord(buffer, from, to, record, consumer);
+            from = nextSegmentStart;
+        }
+    }
+
+    private static void forEachRecord(ByteBuffer buffer, long from, long to,
+                                      RollupRecord record, RecordConsumer consumer) {
+        for (int r = 0; r < RECORDS_PER_SEGMENT; r++) {
+            int offset = r * RECORD_SIZE;
+            int count = buffer.getInt(offset + COUNT);
+            if (count == 0) {
+                return;
+            }
+            long bucketStart = buffer.getLong(offset + BUCKET_START);
+            if (bucketStart < from) {
+                continue;
+            }
+            if (bucketStart >= to) {
+                return;
+            }
+            record.bucketStart = bucketStart;
+            record.count = count;
+            record.min = buffer.getFloat(offset + MIN);
+            record.max = buffer.getFloat(offset + MAX);
+            record.last = buffer.getFloat(offset + LAST);
+            record.sum = buffer.getDouble(offset + SUM);
+            consumer.accept(record);
+        }
+    }
+
+    // last segment starting at or before the timestamp
+    private int findSegment(long timestamp) {
+        int low = 0;
+        int high = segments.size() - 1;
+        int found = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (segments.get(mid).getFirstTimestamp() <= timestamp) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Deletes whole segments whose records are all older than the cutoff. The segment being
+     * appended to is always kept.
+     */
+    synchronized int deleteSegmentsBefore(long cutoff) {
+        int deleted = 0;
+        while (segments.size() > 1 && segments.get(1).getFirstTimestamp() <= cutoff) {
+            MappedSegment segment = segments.remove(0);
+            if (!segment.delete()) {
+                Timber.w("Cannot delete expired segment %s", segment.getFile());
+            }
+            deleted++;
+        }
+        return deleted;
+    }
+
+    synchronized void flush() {
+        if (currentSegment != null) {
+            currentSegment.flush();
+        }
+    }
+}
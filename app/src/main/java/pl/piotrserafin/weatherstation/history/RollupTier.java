@@ -0,0 +1,37 @@
+package pl.piotrserafin.weatherstation.history;
+
+/**
+ * Aggregation levels materialized from raw history. Each tier is computed from the one
+ * before it, the first one from raw samples.
+ */
+public enum RollupTier {
+    MINUTE("1m", 60*1000L, 180*24*60*60*1000L),
+    HOUR("1h", 60*60*1000L, 5*365*24*60*60*1000L),
+    DAY("1d", 24*60*60*1000L, Long.MAX_VALUE);
+
+    private final String directoryName;
+    private final long bucketMillis;
+    private final long defaultRetentionMillis;
+
+    RollupTier(String directoryName, long bucketMillis, long defaultRetentionMillis) {
+        this.directoryName = directoryName;
+        this.bucketMillis = bucketMillis;
+        this.defaultRetentionMillis = defaultRetentionMillis;
+    }
+
+    public String getDirectoryName() {
+        return directoryName;
+    }
+
+    public long getBucketMillis() {
+        return bucketMillis;
+    }
+
+    public long getDefaultRetentionMillis() {
+        return defaultRetentionMillis;
+    }
+
+    public long bucketStart(long timestamp) {
+        return Math.floorDiv(timestamp, bucketMillis) * bucketMillis;
+    }
+}
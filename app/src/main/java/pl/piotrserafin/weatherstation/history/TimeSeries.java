@@ -0,0 +1,205 @@
+package pl.piotrserafin.weatherstation.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * Raw samples of one sensor, stored as Gorilla compressed blocks in append-only segments.
+ * A block index with time and value ranges is kept in memory and rebuilt from the block
+ * headers on open.
+ */
+class TimeSeries {
+
+    static final int BLOCKS_PER_SEGMENT = 64;
+    static final int SEGMENT_SIZE = BLOCKS_PER_SEGMENT * Block.SIZE;
+
+    interface SampleConsumer {
+        void accept(long timestamp, float value);
+    }
+
+    private final String sensorName;
+    private final File directory;
+    private final List<MappedSegment> segments;
+    private final List<BlockInfo> index = new ArrayList<>();
+
+    private MappedSegment currentSegment;
+    private int currentBlock;
+    private Block.Writer writer;
+    private BlockInfo currentInfo;
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    TimeSeries(String sensorName, File directory) throws IOException {
+        this.sensorName = sensorName;
+        this.directory = directory;
+        this.segments = MappedSegment.openAll(directory, SEGMENT_SIZE);
+        for (MappedSegment segment : segments) {
+            for (int block = 0; block < BLOCKS_PER_SEGMENT; block++) {
+                BlockInfo info = new BlockInfo(segment, block * Block.SIZE);
+                if (info.count == 0) {
+                    break;
+                }
+                index.add(info);
+                lastTimestamp = Math.max(lastTimestamp, info.lastTimestamp);
+                currentSegment = segment;
+                currentBlock = block;
+            }
+        }
+        if (!index.isEmpty()) {
+            // keep filling the last block of a previous run instead of sealing it
+            currentInfo = index.get(index.size() - 1);
+            writer = Block.Writer.resume(currentSegment.getBuffer(), currentInfo.offset);
+        }
+    }
+
+    String getSensorName() {
+        return sensorName;
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns false if the sample is not newer than the last stored one.
+     */
+    synchronized boolean append(long timestamp, float value) throws IOException {
+        if (timestamp <= lastTimestamp) {
+            return false;
+        }
+        if (writer == null || !writer.append(timestamp, value)) {
+            startBlock(timestamp);
+            if (!writer.append(timestamp, value)) {
+                throw new IllegalStateException("Sample does not fit into an empty block");
+            }
+        }
+        lastTimestamp = timestamp;
+        currentInfo.count = writer.getCount();
+        currentInfo.lastTimestamp = timestamp;
+        currentInfo.min = writer.getMin();
+        currentInfo.max = writer.getMax();
+        return true;
+    }
+
+    private void startBlock(long timestamp) throws IOException {
+        if (currentSegment != null) {
+            currentBlock++;
+        }
+        if (currentSegment == null || currentBlock >= BLOCKS_PER_SEGMENT) {
+            if (currentSegment != null) {
+                currentSegment.flush();
+            }
+            currentSegment = MappedSegment.create(directory, timestamp, SEGMENT_SIZE);
+            segments.add(currentSegment);
+            currentBlock = 0;
+        }
+        writer = new Block.Writer(currentSegment.getBuffer(), currentBlock * Block.SIZE);
+        currentInfo = new BlockInfo(currentSegment, currentBlock * Block.SIZE);
+        currentInfo.firstTimestamp = timestamp;
+        index.add(currentInfo);
+    }
+
+    synchronized long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    synchronized long getFirstTimestamp() {
+        return index.isEmpty() ? Long.MIN_VALUE : index.get(0).firstTimestamp;
+    }
+
+    /**
+     * Visits samples with a timestamp in [from, to), skipping blocks outside of the range
+     * without decoding them. Blocks are decoded one at a time under the lock and the
+     * consumer is called outside of it, so a slow consumer does not hold up appends.
+     */
+    void forEach(long from, long to, SampleConsumer consumer) {
+        long[] timestamps = new long[0];
+        float[] values = new float[0];
+        while (from < to) {
+            int count = 0;
+            synchronized (this) {
+                BlockInfo info = findBlock(from, to);
+                if (info == null) {
+                    return;
+                }
+                if (timestamps.length < info.count) {
+                    timestamps = new long[info.count];
+                    values = new float[info.count];
+                }
+                Block.Reader reader = info.reader();
+                while (reader.next()) {
+                    long timestamp = reader.getTimestamp();
+                    if (timestamp >= to) {
+                        break;
+                    }
+                    if (timestamp >= from) {
+                        timestamps[count] = timestamp;
+                        values[count] = reader.getValue();
+                        count++;
+                    }
+                }
+                // the block may grow meanwhile, its newer samples are picked up next round
+                from = Math.max(from, info.lastTimestamp + 1);
+                if (count > 0) {
+                    from = Math.max(from, timestamps[count - 1] + 1);
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                consumer.accept(timestamps[i], values[i]);
+            }
+        }
+    }
+
+    /**
+     * First block with samples in [from, to), or null. Blocks cover consecutive time ranges,
+     * so the first one ending at or after {@code from} is found by binary search.
+     */
+    private BlockInfo findBlock(long from, long to) {
+        int low = 0;
+        int high = index.size() - 1;
+        BlockInfo found = null;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            BlockInfo info = index.get(mid);
+            if (info.lastTimestamp >= from) {
+                found = info;
+                high = mid - 1;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return found != null && found.overlaps(from, to) ? found : null;
+    }
+
+    /**
+     * Deletes whole segments whose samples are all older than the cutoff. The segment being
+     * appended to is always kept.
+     */
+    synchronized int deleteSegmentsBefore(long cutoff) {
+        int deleted = 0;
+        while (segments.size() > 1 && segments.get(1).getFirstTimestamp() <= cutoff) {
+            MappedSegment segment = segments.remove(0);
+            Iterator<BlockInfo> blocks = index.iterator();
+            while (blocks.hasNext()) {
+                if (blocks.next().segment == segment) {
+                    blocks.remove();
+                }
+            }
+            if (!segment.delete()) {
+                Timber.w("Cannot delete expired segment %s", segment.getFile());
+            }
+            deleted++;
+        }
+        return deleted;
+    }
+
+    synchronized void flush() {
+        if (currentSegment != null) {
+            currentSegment.flush();
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package pl.piotrserafin.weatherstation.history;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import pl.piotrserafin.weatherstation.model.SensorData;
+import timber.log.Timber;
+
+/**
+ * Embedded time-series store for {@link SensorData}. Every sensor gets its own directory of
+ * memory mapped segments holding Gorilla compressed blocks (delta-of-delta timestamps and
+ * XOR encoded values), which keeps 1 Hz history at a few bits per sample.
+ *
+ * <p>A background job materializes {@link RollupTier} aggregates next to the raw data and
+ * enforces per-tier retention by deleting whole segments.
+ */
+public class TimeSeriesStore implements AutoCloseable {
+
+    private static final String RAW_DIRECTORY = "raw";
+
+    public static final long DEFAULT_RAW_RETENTION_MS = 30*24*60*60*1000L;
+
+    private static final long MAINTENANCE_INTERVAL_MS = 60*1000L;
+    // samples of a bucket may still be in flight shortly after it ends
+    private static final long ROLLUP_LAG_MS = 5000;
+
+    private final File directory;
+    private final Map<String, SensorHistory> series = new HashMap<>();
+
+    private final Map<RollupTier, Long> retention = new EnumMap<>(RollupTier.class);
+    private volatile long rawRetentionMillis = DEFAULT_RAW_RETENTION_MS;
+
+    private HandlerThread maintenanceThread;
+    private Handler maintenanceHandler;
+
+    public TimeSeriesStore(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create history directory " + directory);
+        }
+        for (RollupTier tier : RollupTier.values()) {
+            retention.put(tier, tier.getDefaultRetentionMillis());
+        }
+        File[] sensorDirectories = directory.listFiles(File::isDirectory);
+        if (sensorDirectories != null) {
+            for (File sensorDirectory : sensorDirectories) {
+                String sensorName = sensorDirectory.getName();
+                series.put(sensorName, new SensorHistory(sensorName, sensorDirectory));
+            }
+        }
+        Timber.d("Opened history store %s with sensors %s", directory, series.keySet());
+    }
+
+    public void setRawRetentionMillis(long millis) {
+        rawRetentionMillis = millis;
+    }
+
+    public synchronized void setRetentionMillis(RollupTier tier, long millis) {
+        retention.put(tier, millis);
+    }
+
+    /**
+     * Starts the periodic rollup and retention job on its own thread.
+     */
+    public void startMaintenance() {
+        maintenanceThread = new HandlerThread("HistoryMaintenanceThread");
+        maintenanceThread.start();
+        maintenanceHandler = new Handler(maintenanceThread.getLooper());
+        maintenanceHandler.post(maintenanceTask);
+    }
+
+    public void append(List<SensorData> readings) throws IOException {
+        for (SensorData data : readings) {
+            append(data);
+        }
+    }
+
+    public void append(SensorData data) throws IOException {
+        TimeSeries timeSeries = getOrCreate(data.getSensorName()).raw;
+        if (!timeSeries.append(data.getTimestamp(), data.getValue())) {
+            Timber.d("Ignoring out of order sample %s", data);
+        }
+    }
+
+    private synchronized SensorHistory getOrCreate(String sensorName) throws IOException {
+        SensorHistory history = series.get(sensorName);
+        if (history == null) {
+            history = new SensorHistory(sensorName, new File(directory, sensorName));
+            series.put(sensorName, history);
+        }
+        return history;
+    }
+
+    synchronized TimeSeries getSeries(String sensorName) {
+        SensorHistory history = series.get(sensorName);
+        return history == null ? null : history.raw;
+    }
+
+    synchronized RollupSeries getRollup(String sensorName, RollupTier tier) {
+        SensorHistory history = series.get(sensorName);
+        return history == null ? null : history.rollups.get(tier);
+    }
+
+    /**
+     * Streams the result of the query to the callback on the calling thread. Buckets are read
+     * from the coarsest rollup tier that fits the step; the most recent part of the range,
+     * not rolled up yet, is filled from finer tiers and raw samples.
+     *
+     * @return number of points delivered
+     */
+    public int query(HistoryQuery query, HistoryQuery.Callback callback) {
+        SensorHistory history;
+        synchronized (this) {
+            history = series.get(query.getSensorName());
+        }
+        if (history == null) {
+            return 0;
+        }
+        if (query.getStepMillis() == 0) {
+            int[] points = new int[1];
+            history.raw.forEach(query.getFrom(), query.getTo(), (timestamp, value) -> {
+                callback.onPoint(timestamp, value);
+                points[0]++;
+            });
+            return points[0];
+        }
+
+        StepAccumulator accumulator = new StepAccumulator(query, callback);
+        long from = query.getFrom();
+        RollupTier tier = query.selectTier();
+        for (int level = tier == null ? -1 : tier.ordinal(); level >= 0 && from < query.getTo();
+                level--) {
+            RollupSeries rollup = history.rollups.get(RollupTier.values()[level]);
+            long covered = Math.min(query.getTo(), rollup.getNextBucketStart());
+            if (covered > from) {
+                rollup.forEach(from, covered, accumulator::merge);
+                from = covered;
+            }
+        }
+        if (from < query.getTo()) {
+            history.raw.forEach(from, query.getTo(), accumulator::add);
+        }
+        accumulator.finish();
+        return accumulator.points;
+    }
+
+    public synchronized List<String> getSensorNames() {
+        return new ArrayList<>(series.keySet());
+    }
+
+    public synchronized void flush() {
+        for (SensorHistory history : series.values()) {
+            history.raw.flush();
+            for (RollupSeries rollup : history.rollups.values()) {
+                rollup.flush();
+            }
+        }
+    }
+
+    /**
+     * Materializes all complete buckets up to {@code now} and deletes expired segments.
+     */
+    public void runMaintenance(long now) {
+        List<SensorHistory> histories;
+        Map<RollupTier, Long> currentRetention;
+        synchronized (this) {
+            histories = new ArrayList<>(series.values());
+            currentRetention = new EnumMap<>(retention);
+        }
+        for (SensorHistory history : histories) {
+            try {
+                history.rollUp(now - ROLLUP_LAG_MS);
+                history.enforceRetention(now, currentRetention);
+            } catch (IOException e) {
+                Timber.e(e, "Cannot maintain history of %s", history.sensorName);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (maintenanceThread != null) {
+            maintenanceThread.quitSafely();
+            maintenanceThread = null;
+        }
+        flush();
+    }
+
+    private final Runnable maintenanceTask = new Runnable() {
+        @Override
+        public void run() {
+            runMaintenance(System.currentTimeMillis());
+            maintenanceHandler.postDelayed(this, MAINTENANCE_INTERVAL_MS);
+        }
+    };
+
+    private class SensorHistory {
+        final String sensorName;
+        final TimeSeries raw;
+        final Map<RollupTier, RollupSeries> rollups = new EnumMap<>(RollupTier.class);
+
+        SensorHistory(String sensorName, File sensorDirectory) throws IOException {
+            this.sensorName = sensorName;
+            this.raw = new TimeSeries(sensorName, new File(sensorDirectory, RAW_DIRECTORY));
+            for (RollupTier tier : RollupTier.values()) {
+                rollups.put(tier, new RollupSeries(tier,
+                        new File(sensorDirectory, tier.getDirectoryName())));
+            }
+        }
+
+        void rollUp(long now) throws IOException {
+            RollupSeries source = null;
+            for (RollupTier tier : RollupTier.values()) {
+                RollupSeries target = rollups.get(tier);
+                long end = tier.bucketStart(now);
+                long start = target.getNextBucketStart();
+                if (start == Long.MIN_VALUE) {
+                    long first = source == null ? raw.getFirstTimestamp() :
+                            source.getFirstBucketStart();
+                    if (first == Long.MIN_VALUE) {
+                        return;
+                    }
+                    start = tier.bucketStart(first);
+                }
+                if (start < end) {
+                    Accumulator accumulator = new Accumulator(tier, target);
+                    if (source == null) {
+                        raw.forEach(start, end, accumulator::add);
+                    } else {
+                        source.forEach(start, end, accumulator::merge);
+                    }
+                    accumulator.finish();
+                }
+                source = target;
+            }
+        }
+
+        void enforceRetention(long now, Map<RollupTier, Long> retention) {
+            // raw data is only dropped once it is rolled up
+            long rawCutoff = Math.min(now - rawRetentionMillis,
+                    rollups.get(RollupTier.MINUTE).getNextBucketStart());
+            int deleted = raw.deleteSegmentsBefore(rawCutoff);
+            for (RollupTier tier : RollupTier.values()) {
+                long keep = retention.get(tier);
+                if (keep != Long.MAX_VALUE) {
+                    deleted += rollups.get(tier).deleteSegmentsBefore(now - keep);
+                }
+            }
+            if (deleted > 0) {
+                Timber.d("Deleted %d expired segments of %s", deleted, sensorName);
+            }
+        }
+    }
+
+    /**
+     * Folds query input into step sized buckets and reports each one once it is complete.
+     */
+    private static class StepAccumulator {
+        private final HistoryQuery query;
+        private final HistoryQuery.Callback callback;
+        private final RollupRecord bucket = new RollupRecord();
+        int points;
+
+        StepAccumulator(HistoryQuery query, HistoryQuery.Callback callback) {
+            this.query = query;
+            this.callback = callback;
+            bucket.reset(Long.MIN_VALUE);
+        }
+
+        void add(long timestamp, float value) {
+            startBucket(timestamp);
+            bucket.add(value);
+        }
+
+        void merge(RollupRecord record) {
+            startBucket(record.bucketStart);
+            bucket.merge(record);
+        }
+
+        private void startBucket(long timestamp) {
+            long step = query.getStepMillis();
+            long bucketStart = Math.floorDiv(timestamp, step) * step;
+            if (bucketStart != bucket.bucketStart) {
+                emit();
+                bucket.reset(bucketStart);
+            }
+        }
+
+        private void emit() {
+            if (bucket.count == 0) {
+                return;
+            }
+            callback.onPoint(bucket.bucketStart, valueOf(bucket));
+            points++;
+        }
+
+        private float valueOf(RollupRecord record) {
+            switch (query.getAggregation()) {
+                case MIN:
+                    return record.getMin();
+                case MAX:
+                    return record.getMax();
+                case LAST:
+                    return record.getLast();
+                case COUNT:
+                    return record.getCount();
+                case MEAN:
+                default:
+                    return record.getMean();
+            }
+        }
+
+        void finish() {
+            emit();
+        }
+    }
+
+    /**
+     * Folds samples or finer records into consecutive buckets and appends each finished one.
+     */
+    private static class Accumulator {
+        private final RollupTier tier;
+        private final RollupSeries target;
+        private final RollupRecord bucket = new RollupRecord();
+        private IOException error;
+
+        Accumulator(RollupTier tier, RollupSeries target) {
+            this.tier = tier;
+            this.target = target;
+            bucket.reset(Long.MIN_VALUE);
+        }
+
+        void add(long timestamp, float value) {
+            startBucket(tier.bucketStart(timestamp));
+            bucket.add(value);
+        }
+
+        void merge(RollupRecord record) {
+            startBucket(tier.bucketStart(record.bucketStart));
+            bucket.merge(record);
+        }
+
+        private void startBucket(long bucketStart) {
+            if (bucketStart != bucket.bucketStart) {
+                emit();
+                bucket.reset(bucketStart);
+            }
+        }
+
+        private void emit() {
+            if (bucket.count == 0 || error != null) {
+                return;
+            }
+            try {
+                target.append(bucket);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        void finish() throws IOException {
+            emit();
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+}
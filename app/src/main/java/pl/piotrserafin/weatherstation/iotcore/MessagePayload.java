@@ -1,13 +1,31 @@
 package pl.piotrserafin.weatherstation.iotcore;
 
+import android.util.Base64;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import pl.piotrserafin.weatherstation.history.HistoryQuery;
 
 import pl.piotrserafin.weatherstation.model.SensorData;
+import pl.piotrserafin.weatherstation.pipeline.AdaptiveSampler;
+import pl.piotrserafin.weatherstation.pipeline.DeadbandFilter;
+import pl.piotrserafin.weatherstation.pipeline.PipelineMetrics;
+import pl.piotrserafin.weatherstation.pipeline.PublishMode;
+import pl.piotrserafin.weatherstation.pipeline.SensorCorrections;
+import pl.piotrserafin.weatherstation.pipeline.WindowSummary;
+import pl.piotrserafin.weatherstation.sensor.Bme280Profile;
+import pl.piotrserafin.weatherstation.sensor.CollectorHealth;
+import pl.piotrserafin.weatherstation.sensor.HighRateAcquisition;
 
 public class MessagePayload {
 
@@ -27,15 +45,108 @@ public class MessagePayload {
         }
     }
 
-    public static String createDeviceStateUpdatePayload(int version, int telemetryEventsPerHour,
-                                                        int stateUpdatesPerHour, List<String> allSensors, List<String> activeSensors) {
+    public static String createSummaryMessagePayload(long windowStart, long windowEnd,
+                                                     List<WindowSummary> summaries) {
+        try {
+            JSONObject messagePayload = new JSONObject();
+            messagePayload.put("timestamp", windowEnd);
+            messagePayload.put("window-start", windowStart);
+            for (WindowSummary summary : summaries) {
+                JSONObject sensor = new JSONObject();
+                sensor.put("count", summary.getCount());
+                sensor.put("min", summary.getMin());
+                sensor.put("max", summary.getMax());
+                sensor.put("mean", summary.getMean());
+                sensor.put("stddev", summary.getStdDev());
+                sensor.put("last", summary.getLast());
+                sensor.put("p5", summary.getP5());
+                sensor.put("p50", summary.getP50());
+                sensor.put("p95", summary.getP95());
+                sensor.put("digest", Base64.encodeToString(summary.getDigest(), Base64.NO_WRAP));
+                if (summary.getSlidingCount() > 0) {
+                    JSONObject sliding = new JSONObject();
+                    sliding.put("count", summary.getSlidingCount());
+                    sliding.put("span-ms", summary.getSlidingSpanMillis());
+                    sliding.put("min", summary.getSlidingMin());
+                    sliding.put("max", summary.getSlidingMax());
+                    sliding.put("mean", summary.getSlidingMean());
+                    sliding.put("stddev", summary.getSlidingStdDev());
+                    sliding.put("change", summary.getSlidingChange());
+                    sensor.put("sliding", sliding);
+                }
+                messagePayload.put(summary.getSensorName(), sensor);
+            }
+            return messagePayload.toString();
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Invalid message", e);
+        }
+    }
+
+    /**
+     * One chunk of history requested by the "backfill" config, points as [timestamp, value].
+     */
+    public static String createBackfillMessagePayload(HistoryQuery query, long[] timestamps,
+                                                      float[] values, int count) {
+        try {
+            JSONObject messagePayload = new JSONObject();
+            messagePayload.put("backfill", query.getSensorName());
+            messagePayload.put("aggregation",
+                    query.getAggregation().name().toLowerCase(Locale.ROOT));
+            messagePayload.put("step-ms", query.getStepMillis());
+            JSONArray points = new JSONArray();
+            for (int i = 0; i < count; i++) {
+                JSONArray point = new JSONArray();
+                point.put(timestamps[i]);
+                point.put((double) values[i]);
+                points.put(point);
+            }
+            messagePayload.put("points", points);
+            return messagePayload.toString();
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Invalid message", e);
+        }
+    }
+
+    public static String createDeviceStateUpdatePayload(DeviceState state) {
         try {
             JSONObject messagePayload = new JSONObject();
-            messagePayload.put("version", version);
-            messagePayload.put("telemetry-events-per-hour", telemetryEventsPerHour);
-            messagePayload.put("state-updates-per-hour", stateUpdatesPerHour);
-            messagePayload.put("sensors", new JSONArray(allSensors));
-            messagePayload.put("active-sensors", new JSONArray(activeSensors));
+            messagePayload.put("version", state.version);
+            messagePayload.put("telemetry-events-per-hour", state.telemetryEventsPerHour);
+            messagePayload.put("state-updates-per-hour", state.stateUpdatesPerHour);
+            messagePayload.put("samples-per-hour", state.samplesPerHour);
+            messagePayload.put("publish-mode", state.publishMode.getConfigName());
+            messagePayload.put("sensors", new JSONArray(state.allSensors));
+            messagePayload.put("active-sensors", new JSONArray(state.activeSensors));
+            if (state.samplingIntervals != null) {
+                messagePayload.put("sampling-intervals-ms",
+                        new JSONObject(state.samplingIntervals));
+            }
+            if (state.pipeline != null) {
+                JSONObject pipeline = new JSONObject();
+                pipeline.put("offered", state.pipeline.offered);
+                pipeline.put("dropped", state.pipeline.dropped);
+                pipeline.put("published", state.pipeline.drained);
+                pipeline.put("max-queue-depth", state.pipeline.maxDepth);
+                pipeline.put("mean-wait-ms", state.pipeline.meanWaitMillis);
+                pipeline.put("max-wait-ms", state.pipeline.maxWaitMillis);
+                messagePayload.put("pipeline", pipeline);
+            }
+            if (state.collectorHealth != null) {
+                JSONArray collectorHealth = new JSONArray();
+                for (CollectorHealth.Snapshot health : state.collectorHealth) {
+                    JSONObject collector = new JSONObject();
+                    collector.put("name", health.name);
+                    collector.put("state", health.state.getConfigName());
+                    collector.put("consecutive-failures", health.consecutiveFailures);
+                    collector.put("ms-since-success", health.millisSinceSuccess);
+                    collector.put("error-rate", health.errorRate);
+                    if (health.lastError != null) {
+                        collector.put("last-error", health.lastError);
+                    }
+                    collectorHealth.put(collector);
+                }
+                messagePayload.put("collector-health", collectorHealth);
+            }
             return messagePayload.toString();
         } catch (JSONException e) {
             throw new IllegalArgumentException("Invalid message", e);
@@ -49,6 +160,29 @@ public class MessagePayload {
             deviceConfig.version = message.getInt("version");
             deviceConfig.telemetryEventsPerHour = message.getInt("telemetry-events-per-hour");
             deviceConfig.stateUpdatesPerHour = message.getInt("state-updates-per-hour");
+            deviceConfig.samplesPerHour = message.optInt("samples-per-hour",
+                    deviceConfig.telemetryEventsPerHour);
+            if (deviceConfig.samplesPerHour <= 0) {
+                // the sampling period is derived from it
+                throw new JSONException("Invalid samples-per-hour " +
+                        deviceConfig.samplesPerHour);
+            }
+            deviceConfig.publishMode = PublishMode.fromConfigName(
+                    message.optString("publish-mode", PublishMode.RAW.getConfigName()));
+            deviceConfig.slidingWindowSeconds = message.optInt("sliding-window-seconds",
+                    DeviceConfig.DEFAULT_SLIDING_WINDOW_SECONDS);
+            deviceConfig.deadbands = parseDeadbands(message.optJSONObject("deadband"));
+            deviceConfig.samplingPolicies = parseSamplingPolicies(
+                    message.optJSONObject("adaptive-sampling"));
+            deviceConfig.bme280Mode = message.optString("bme280-mode", null);
+            String bme280Profile = message.optString("bme280-profile", null);
+            deviceConfig.bme280Profile = bme280Profile == null ?
+                    null : Bme280Profile.fromConfigName(bme280Profile);
+            deviceConfig.highRatePressure = parseHighRateSettings(
+                    message.optJSONObject("high-rate-pressure"));
+            deviceConfig.corrections = parseCorrections(message.optJSONObject("corrections"));
+            deviceConfig.altitudeMeters = (float) message.optDouble("altitude-m", 0);
+            deviceConfig.backfill = parseBackfill(message.optJSONObject("backfill"));
             JSONArray activeSensors = message.getJSONArray("active-sensors");
             deviceConfig.activeSensors = new String[activeSensors.length()];
             for (int i = 0; i < activeSensors.length(); i++) {
@@ -60,10 +194,142 @@ public class MessagePayload {
         }
     }
 
+    private static Map<String, DeadbandFilter.Threshold> parseDeadbands(JSONObject deadbands)
+            throws JSONException {
+        Map<String, DeadbandFilter.Threshold> thresholds = new HashMap<>();
+        if (deadbands == null) {
+            return thresholds;
+        }
+        Iterator<String> sensors = deadbands.keys();
+        while (sensors.hasNext()) {
+            String sensor = sensors.next();
+            JSONObject deadband = deadbands.getJSONObject(sensor);
+            DeadbandFilter.Threshold threshold = new DeadbandFilter.Threshold();
+            threshold.absolute = (float) deadband.optDouble("absolute", 0);
+            threshold.relative = (float) deadband.optDouble("relative", 0);
+            threshold.maxSilenceMillis = deadband.optLong("max-silence-seconds",
+                    threshold.maxSilenceMillis / 1000) * 1000;
+            thresholds.put(sensor, threshold);
+        }
+        return thresholds;
+    }
+
+    private static Map<String, SensorCorrections.Spec> parseCorrections(JSONObject corrections)
+            throws JSONException {
+        Map<String, SensorCorrections.Spec> specs = new HashMap<>();
+        if (corrections == null) {
+            return specs;
+        }
+        Iterator<String> sensors = corrections.keys();
+        while (sensors.hasNext()) {
+            String sensor = sensors.next();
+            JSONObject correction = corrections.getJSONObject(sensor);
+            SensorCorrections.Spec spec = new SensorCorrections.Spec();
+            spec.offset = (float) correction.optDouble("offset", spec.offset);
+            spec.gain = (float) correction.optDouble("gain", spec.gain);
+            JSONArray polynomial = correction.optJSONArray("polynomial");
+            if (polynomial != null) {
+                spec.segments = new ArrayList<>();
+                for (int i = 0; i < polynomial.length(); i++) {
+                    JSONObject range = polynomial.getJSONObject(i);
+                    SensorCorrections.Segment segment = new SensorCorrections.Segment();
+                    segment.from = (float) range.optDouble("from", Float.NEGATIVE_INFINITY);
+                    JSONArray coefficients = range.getJSONArray("coefficients");
+                    if (coefficients.length() < 1 ||
+                            coefficients.length() > SensorCorrections.MAX_DEGREE + 1) {
+                        throw new JSONException("Invalid polynomial for " + sensor +
+                                ", expected 1 to " + (SensorCorrections.MAX_DEGREE + 1) +
+                                " coefficients");
+                    }
+                    segment.coefficients = new float[coefficients.length()];
+                    for (int j = 0; j < coefficients.length(); j++) {
+                        segment.coefficients[j] = (float) coefficients.getDouble(j);
+                    }
+                    spec.segments.add(segment);
+                }
+            }
+            JSONObject selfHeating = correction.optJSONObject("self-heating");
+            if (selfHeating != null) {
+                spec.selfHeating = (float) selfHeating.getDouble("steady-state");
+                spec.selfHeatingTimeConstantMillis =
+                        selfHeating.getLong("time-constant-seconds") * 1000;
+                if (spec.selfHeatingTimeConstantMillis <= 0) {
+                    throw new JSONException("Invalid self-heating time constant for " + sensor);
+                }
+            }
+            specs.put(sensor, spec);
+        }
+        return specs;
+    }
+
+    private static HistoryQuery parseBackfill(JSONObject backfill) throws JSONException {
+        if (backfill == null) {
+            return null;
+        }
+        HistoryQuery.Aggregation aggregation = HistoryQuery.Aggregation.valueOf(
+                backfill.optString("aggregation", "mean").toUpperCase(Locale.ROOT));
+        return new HistoryQuery(backfill.getString("sensor"), backfill.getLong("from"),
+                backfill.getLong("to"), aggregation,
+                backfill.optLong("step-seconds", 0) * 1000);
+    }
+
+    private static HighRateAcquisition.Settings parseHighRateSettings(JSONObject highRate) {
+        if (highRate == null) {
+            return null;
+        }
+        HighRateAcquisition.Settings settings = new HighRateAcquisition.Settings();
+        settings.rateHz = highRate.optInt("rate-hz", settings.rateHz);
+        settings.decimation = highRate.optInt("decimation", settings.decimation);
+        settings.peakThreshold = (float) highRate.optDouble("peak-threshold",
+                settings.peakThreshold);
+        if (settings.rateHz < 1 || settings.rateHz > 100 || settings.decimation < 1 ||
+                settings.decimation > HighRateAcquisition.MAX_DECIMATION) {
+            throw new IllegalArgumentException("Invalid high-rate-pressure " + settings);
+        }
+        return settings;
+    }
+
+    private static Map<String, AdaptiveSampler.Policy> parseSamplingPolicies(
+            JSONObject adaptiveSampling) throws JSONException {
+        Map<String, AdaptiveSampler.Policy> policies = new HashMap<>();
+        if (adaptiveSampling == null) {
+            return policies;
+        }
+        Iterator<String> sensors = adaptiveSampling.keys();
+        while (sensors.hasNext()) {
+            String sensor = sensors.next();
+            JSONObject sampling = adaptiveSampling.getJSONObject(sensor);
+            AdaptiveSampler.Policy policy = new AdaptiveSampler.Policy();
+            policy.minIntervalMillis = sampling.getLong("min-interval-seconds") * 1000;
+            policy.maxIntervalMillis = sampling.getLong("max-interval-seconds") * 1000;
+            policy.slopeThresholdPerHour = (float) sampling.getDouble("slope-threshold-per-hour");
+            if (policy.minIntervalMillis <= 0 ||
+                    policy.maxIntervalMillis < policy.minIntervalMillis) {
+                throw new JSONException("Invalid sampling interval bounds for " + sensor);
+            }
+            policies.put(sensor, policy);
+        }
+        return policies;
+    }
+
     public static class DeviceConfig {
+        public static final int DEFAULT_SLIDING_WINDOW_SECONDS = 60*60;
+
         public int version;
         public int telemetryEventsPerHour;
         public int stateUpdatesPerHour;
+        public int samplesPerHour;
+        public PublishMode publishMode;
+        public int slidingWindowSeconds;
+        public Map<String, DeadbandFilter.Threshold> deadbands;
+        public Map<String, AdaptiveSampler.Policy> samplingPolicies;
+        public String bme280Mode;
+        public Bme280Profile bme280Profile;
+        public HighRateAcquisition.Settings highRatePressure;
+        public Map<String, SensorCorrections.Spec> corrections;
+        public float altitudeMeters;
+        // history to publish once, when this config version is applied
+        public HistoryQuery backfill;
         public String[] activeSensors;
 
         @Override
@@ -72,8 +338,32 @@ public class MessagePayload {
                     "version=" + version +
                     ", telemetryEventsPerHour=" + telemetryEventsPerHour +
                     ", stateUpdatesPerHour=" + stateUpdatesPerHour +
+                    ", samplesPerHour=" + samplesPerHour +
+                    ", publishMode=" + publishMode +
+                    ", slidingWindowSeconds=" + slidingWindowSeconds +
+                    ", deadbands=" + deadbands +
+                    ", samplingPolicies=" + samplingPolicies +
+                    ", bme280Mode=" + bme280Mode +
+                    ", bme280Profile=" + bme280Profile +
+                    ", highRatePressure=" + highRatePressure +
+                    ", corrections=" + corrections +
+                    ", altitudeMeters=" + altitudeMeters +
+                    ", backfill=" + backfill +
                     ", activeSensors=" + Arrays.toString(activeSensors) +
                     '}';
         }
     }
+
+    public static class DeviceState {
+        public int version;
+        public int telemetryEventsPerHour;
+        public int stateUpdatesPerHour;
+        public int samplesPerHour;
+        public PublishMode publishMode;
+        public List<String> allSensors;
+        public List<String> activeSensors;
+        public Map<String, Long> samplingIntervals;
+        public PipelineMetrics.Snapshot pipeline;
+        public List<CollectorHealth.Snapshot> collectorHealth;
+    }
 }
@@ -0,0 +1,143 @@
+package pl.piotrserafin.weatherstation.lcd;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Custom 5x8 character. A glyph is placed in an {@link LcdFrame} by its code, a private-use
+ * character, and is loaded into CGRAM when a frame using it is rendered.
+ */
+public final class Glyph {
+
+    private static final Map<Character, Glyph> GLYPHS = new HashMap<>();
+
+    public static final int HEIGHT = 8;
+
+    // Unicode private use area
+    public static final char FIRST_CODE = '\uE000';
+    public static final char LAST_CODE = '\uF8FF';
+
+    // full 5x8 block from the character ROM, needs no CGRAM slot
+    public static final char FULL_BLOCK = '\u00FF';
+
+    public static final Glyph DEGREE = define('\uE000', 'o',
+            0b01100, 0b10010, 0b10010, 0b01100, 0, 0, 0, 0);
+    public static final Glyph ARROW_UP = define('\uE001', '^',
+            0b00100, 0b01110, 0b10101, 0b00100, 0b00100, 0b00100, 0b00100, 0);
+    public static final Glyph ARROW_DOWN = define('\uE002', 'v',
+            0b00100, 0b00100, 0b00100, 0b00100, 0b10101, 0b01110, 0b00100, 0);
+
+    // bars of 1 to 7 rows, the 8th level is FULL_BLOCK
+    private static final Glyph[] BARS = new Glyph[HEIGHT - 1];
+
+    static {
+        for (int level = 1; level < HEIGHT; level++) {
+            int[] rows = new int[HEIGHT];
+            Arrays.fill(rows, HEIGHT - level, HEIGHT, 0b11111);
+            BARS[level - 1] = define((char) ('\uE010' + level), level < HEIGHT / 2 ? '_' : '#',
+                    rows);
+        }
+    }
+
+    private final char code;
+    private final char fallback;
+    private final byte[] rows;
+
+    private Glyph(char code, char fallback, byte[] rows) {
+        this.code = code;
+        this.fallback = fallback;
+        this.rows = rows;
+    }
+
+    /**
+     * @param fallback shown when all CGRAM slots are taken by other glyphs on the display
+     * @param rows 5 bits each, top row first
+     */
+    public static Glyph define(char code, char fallback, int... rows) {
+        if (code < FIRST_CODE || code > LAST_CODE) {
+            throw new IllegalArgumentException("Glyph code not in the private use area: "
+                    + Integer.toHexString(code));
+        }
+        if (rows.length != HEIGHT) {
+            throw new IllegalArgumentException("Glyph needs " + HEIGHT + " rows");
+        }
+        byte[] pattern = new byte[HEIGHT];
+        for (int i = 0; i < HEIGHT; i++) {
+            pattern[i] = (byte) (rows[i] & 0x1F);
+        }
+        Glyph glyph = new Glyph(code, fallback, pattern);
+        synchronized (GLYPHS) {
+            GLYPHS.put(code, glyph);
+        }
+        return glyph;
+    }
+
+    /**
+     * @return the glyph with this code, or null for characters of the ROM
+     */
+    public static Glyph forChar(char c) {
+        if (c < FIRST_CODE || c > LAST_CODE) {
+            return null;
+        }
+        synchronized (GLYPHS) {
+            return GLYPHS.get(c);
+        }
+    }
+
+    /**
+     * Character of a vertical bar, level 0 (space) to 8 (full cell).
+     */
+    public static char bar(int level) {
+        if (level <= 0) {
+            return ' ';
+        }
+        if (level >= HEIGHT) {
+            return FULL_BLOCK;
+        }
+        return BARS[level - 1].code;
+    }
+
+    /**
+     * Bar graph of the values scaled between their minimum and maximum, one cell each, so a
+     * full row shows the last 16 values. NaN values are left blank.
+     */
+    public static String sparkline(float[] values) {
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (float value : values) {
+            if (!Float.isNaN(value)) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+        StringBuilder line = new StringBuilder(values.length);
+        for (float value : values) {
+            if (Float.isNaN(value)) {
+                line.append(' ');
+            } else if (max == min) {
+                line.append(bar(HEIGHT / 2));
+            } else {
+                line.append(bar(1 + Math.round((value - min) / (max - min) * (HEIGHT - 1))));
+            }
+        }
+        return line.toString();
+    }
+
+    public char getCode() {
+        return code;
+    }
+
+    char getFallback() {
+        return fallback;
+    }
+
+    byte[] getRows() {
+        return rows;
+    }
+
+    @Override
+    public String toString() {
+        return "Glyph{" + Integer.toHexString(code) + "}";
+    }
+}
@@ -0,0 +1,78 @@
+package pl.piotrserafin.weatherstation.lcd;
+
+/**
+ * Which glyph sits in which of the 8 CGRAM slots. Slots are referenced by the cells showing
+ * them; only unreferenced slots are reused, least recently used first, so a glyph already
+ * resident is never uploaded again.
+ */
+class GlyphCache {
+
+    static final int SLOTS = 8;
+
+    private final Glyph[] resident = new Glyph[SLOTS];
+    private final int[] references = new int[SLOTS];
+    private final long[] lastUse = new long[SLOTS];
+    private long uses;
+
+    /**
+     * @return the slot holding the glyph, or -1 when it is not resident
+     */
+    int slotOf(Glyph glyph) {
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (resident[slot] == glyph) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Takes over the least recently used unreferenced slot for the glyph; the caller uploads
+     * it.
+     *
+     * @return the slot, or -1 when all slots are referenced
+     */
+    int load(Glyph glyph) {
+        int victim = -1;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (references[slot] == 0 && (victim < 0 || lastUse[slot] < lastUse[victim])) {
+                victim = slot;
+            }
+        }
+        if (victim >= 0) {
+            resident[victim] = glyph;
+        }
+        return victim;
+    }
+
+    void retain(int slot) {
+        references[slot]++;
+        lastUse[slot] = ++uses;
+    }
+
+    void release(int slot) {
+        if (slot >= 0 && references[slot] > 0) {
+            references[slot]--;
+        }
+    }
+
+    /**
+     * Forgets all references, for when the displayed cells are no longer known. Resident
+     * glyphs stay, CGRAM survives clearing the display.
+     */
+    void releaseAll() {
+        for (int slot = 0; slot < SLOTS; slot++) {
+            references[slot] = 0;
+        }
+    }
+
+    /**
+     * Forgets resident glyphs as well, for when an upload may not have reached CGRAM.
+     */
+    void forgetAll() {
+        for (int slot = 0; slot < SLOTS; slot++) {
+            resident[slot] = null;
+            references[slot] = 0;
+        }
+    }
+}
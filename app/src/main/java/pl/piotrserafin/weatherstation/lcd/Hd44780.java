@@ -0,0 +1,398 @@
+package pl.piotrserafin.weatherstation.lcd;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import timber.log.Timber;
+
+/**
+ * HD44780 instruction set and timing over a 4-bit interface. Subclasses only move nibbles to
+ * the controller; they may buffer them until {@link #flush()}, which every public operation
+ * calls once at its end.
+ */
+public abstract class Hd44780 implements LcdDisplay {
+
+    // HD44780U Commands
+    protected static final byte CMD_CLEAR_DISPLAY = 0x01;
+    protected static final byte CMD_RETURN_HOME = 0x02;
+    protected static final byte CMD_ENTRY_MODE_SET = 0x04;
+    protected static final byte CMD_DISPLAY_CTRL = 0x08;
+    protected static final byte CMD_SHIFT = 0x10;
+    protected static final byte CMD_FUNCTION_SET = 0x20;
+    protected static final byte CMD_CCGRAM = 0x40;
+    protected static final short CMD_CDDRAM = 0x80;
+
+    //Entry register
+    private static final byte REG_ENTRY_MODE_SET_SH = 0x01;
+    private static final byte REG_ENTRY_MODE_SET_ID = 0x02;
+
+    //Display control register
+    private static final byte REG_CTRL_B = 0x01;
+    private static final byte REG_CTRL_C = 0x02;
+    private static final byte REG_CTRL_D = 0x04;
+
+    //Function set register
+    private static final byte REG_FUNC_F = 0x04;
+    private static final byte REG_FUNC_N = 0x08;
+    private static final byte REG_FUNC_DL = 0x10;
+
+    protected static final byte CDSHIFT_RL = 0x04;
+    protected static final byte CDSHIFT_SC = 0x08;
+
+    private static final byte LCD_DDRAM_ADDR_COL1_ROW2 = 0x40;
+
+    private static final byte CLEAR_DISPLAY = CMD_CLEAR_DISPLAY;
+    private static final byte RETURN_HOME = CMD_RETURN_HOME;
+    private static final byte SET_NO_SHIFT = (CMD_ENTRY_MODE_SET | REG_ENTRY_MODE_SET_ID);
+    private static final byte SET_8_BIT_MODE = ((CMD_FUNCTION_SET | REG_FUNC_DL) >> 4);
+    private static final byte SET_4_BIT_MODE = CMD_FUNCTION_SET >> 4;
+    private static final byte SET_2_ROWS_5_X_7_DOTS = (CMD_FUNCTION_SET | REG_FUNC_N);
+
+    // HD44780U timing at 270 kHz (datasheet, tables 6 and 20)
+    protected static final long ENABLE_PULSE_NANOS = 450;
+    protected static final long DATA_DELAY_NANOS = 360;
+    protected static final long EXECUTION_NANOS = 37000;
+    protected static final long DATA_WRITE_NANOS = 37000 + 4000;
+    protected static final long CLEAR_HOME_NANOS = 1520000;
+    private static final long INIT_FIRST_WAIT_NANOS = 4100000;
+    private static final long INIT_SECOND_WAIT_NANOS = 100000;
+    // slow clones run their oscillator well below 270 kHz
+    protected static final int CONSERVATIVE_FACTOR = 3;
+    // parking is only precise to about this, the rest of a wait is spun
+    private static final long PARK_MARGIN_NANOS = 100000;
+
+    protected static final int ROWS = LcdFrame.ROWS;
+    protected static final int COLUMNS = LcdFrame.COLUMNS;
+
+    protected final int timingFactor;
+
+    private byte displayControl = CMD_DISPLAY_CTRL;
+
+    // what the display shows, valid only while all DDRAM writes go through render()
+    private final LcdFrame shown = new LcdFrame();
+    private boolean shownValid;
+    // frame being rendered, with glyphs which got no CGRAM slot replaced by their fallback
+    private final LcdFrame resolved = new LcdFrame();
+
+    private final GlyphCache glyphs = new GlyphCache();
+
+    // the display is shifted by a marquee, undone by a return home
+    private boolean shifted;
+
+    // System.nanoTime() at which the controller finished the last instruction
+    private long readyAtNanos;
+
+    /**
+     * @param conservativeTiming triples all waits, for clones slower than the datasheet
+     */
+    protected Hd44780(boolean conservativeTiming) {
+        timingFactor = conservativeTiming ? CONSERVATIVE_FACTOR : 1;
+    }
+
+    /**
+     * Puts the controller into 4-bit mode and a known state; called by subclasses once the
+     * interface is open.
+     */
+    protected void initialize() throws IOException {
+        // more than 40 ms after power on
+        delay(50);
+
+        //4-bit mode, initializing by instruction (datasheet, figure 24)
+        writeCmd4(SET_8_BIT_MODE, INIT_FIRST_WAIT_NANOS);
+        writeCmd4(SET_8_BIT_MODE, INIT_SECOND_WAIT_NANOS);
+        writeCmd4(SET_8_BIT_MODE, EXECUTION_NANOS);
+        writeCmd4(SET_4_BIT_MODE, EXECUTION_NANOS);
+
+        //Set 2 rows, 5x7 dots
+        writeCmd(SET_2_ROWS_5_X_7_DOTS);
+
+        // Rest of the initialisation sequence
+        setDisplay(true);
+        setBlink(false);
+        setCursor(false);
+        clearDisplay();
+
+        writeCmd(SET_NO_SHIFT);
+        flush();
+    }
+
+    @Override
+    public void clearDisplay() throws IOException {
+        try {
+            writeCmd(CLEAR_DISPLAY);
+            shown.clear();
+            shownValid = true;
+            glyphs.releaseAll();
+            flush();
+        } catch (IOException e) {
+            forgetDisplayState();
+            throw e;
+        }
+    }
+
+    /**
+     * After a failed write neither DDRAM nor CGRAM are known to hold what was queued, so the
+     * next render rewrites every cell and uploads every glyph again.
+     */
+    private void forgetDisplayState() {
+        shownValid = false;
+        glyphs.forgetAll();
+        // a return home is harmless if the display was not shifted
+        shifted = true;
+    }
+
+    /**
+     * Runs of changed cells are written after a single position command each; the display
+     * is never cleared. {@link Glyph} characters are uploaded to CGRAM only when not already
+     * resident.
+     */
+    @Override
+    public void render(LcdFrame frame) throws IOException {
+        try {
+            if (shifted) {
+                writeCmd(RETURN_HOME);
+                shifted = false;
+            }
+            resolveGlyphs(frame);
+            for (int row = 0; row < ROWS; row++) {
+                int column = 0;
+                while (column < COLUMNS) {
+                    if (!isChanged(resolved, row, column)) {
+                        column++;
+                        continue;
+                    }
+                    writePosition(row, column);
+                    do {
+                        char c = resolved.getChar(row, column);
+                        writeData(toCharacterCode(c));
+                        shown.setChar(row, column, c);
+                        column++;
+                    } while (column < COLUMNS && isChanged(resolved, row, column));
+                }
+            }
+            shownValid = true;
+            flush();
+        } catch (IOException e) {
+            forgetDisplayState();
+            throw e;
+        }
+    }
+
+    private boolean isChanged(LcdFrame frame, int row, int column) {
+        return !shownValid || frame.getChar(row, column) != shown.getChar(row, column);
+    }
+
+    /**
+     * Gives every glyph of the frame a CGRAM slot. Glyphs leaving the display release their
+     * slots first, so they can be reused within the same frame.
+     */
+    private void resolveGlyphs(LcdFrame frame) throws IOException {
+        resolved.copyFrom(frame);
+        if (shownValid) {
+            for (int row = 0; row < ROWS; row++) {
+                for (int column = 0; column < COLUMNS; column++) {
+                    Glyph leaving = Glyph.forChar(shown.getChar(row, column));
+                    if (leaving != null && isChanged(frame, row, column)) {
+                        glyphs.release(glyphs.slotOf(leaving));
+                    }
+                }
+            }
+        } else {
+            glyphs.releaseAll();
+        }
+
+        for (int row = 0; row < ROWS; row++) {
+            for (int column = 0; column < COLUMNS; column++) {
+                Glyph glyph = Glyph.forChar(frame.getChar(row, column));
+                if (glyph != null && isChanged(frame, row, column) && acquireGlyph(glyph) < 0) {
+                    resolved.setChar(row, column, glyph.getFallback());
+                }
+            }
+        }
+    }
+
+    private int acquireGlyph(Glyph glyph) throws IOException {
+        int slot = glyphs.slotOf(glyph);
+        if (slot < 0) {
+            slot = glyphs.load(glyph);
+            if (slot < 0) {
+                return slot;
+            }
+            writeCmd((byte) (CMD_CCGRAM | (slot << 3)));
+            for (byte pattern : glyph.getRows()) {
+                writeData(pattern);
+            }
+        }
+        glyphs.retain(slot);
+        return slot;
+    }
+
+    private byte toCharacterCode(char c) {
+        Glyph glyph = Glyph.forChar(c);
+        return glyph != null ? (byte) glyphs.slotOf(glyph) : (byte) c;
+    }
+
+    @Override
+    public void returnHome() throws IOException {
+        writeCmd(RETURN_HOME);
+        shifted = false;
+        flush();
+    }
+
+    /**
+     * Rows are padded with spaces to the DDRAM row length, so nothing of an earlier marquee
+     * is left in the hidden columns. Glyphs are shown as their fallback.
+     */
+    @Override
+    public void showMarquee(Marquee marquee) throws IOException {
+        // DDRAM is rewritten outside of render()
+        shownValid = false;
+        glyphs.releaseAll();
+        try {
+            writeCmd(RETURN_HOME);
+            shifted = false;
+            writeMarqueeRow(0, marquee.getFirstRow());
+            writeMarqueeRow(1, marquee.getSecondRow());
+            flush();
+        } catch (IOException e) {
+            forgetDisplayState();
+            throw e;
+        }
+    }
+
+    private void writeMarqueeRow(int row, String text) throws IOException {
+        writePosition(row, 0);
+        for (int column = 0; column < Marquee.ROW_LENGTH; column++) {
+            char c = column < text.length() ? text.charAt(column) : ' ';
+            Glyph glyph = Glyph.forChar(c);
+            writeData((byte) (glyph != null ? glyph.getFallback() : c));
+        }
+    }
+
+    @Override
+    public void scrollMarquee() throws IOException {
+        // display rather than cursor shift, R/L clear moves the contents to the left
+        // set first, whether or not the shift reaches the display
+        shifted = true;
+        writeCmd((byte) (CMD_SHIFT | CDSHIFT_SC));
+        flush();
+    }
+
+    @Override
+    public void setDisplay(boolean state) throws IOException {
+        setDisplayControl(REG_CTRL_D, state);
+    }
+
+    @Override
+    public void setCursor(boolean state) throws IOException {
+        setDisplayControl(REG_CTRL_C, state);
+    }
+
+    @Override
+    public void setBlink(boolean state) throws IOException {
+        setDisplayControl(REG_CTRL_B, state);
+    }
+
+    private void setDisplayControl(byte flag, boolean state) throws IOException {
+        if (state)
+            displayControl |= flag;
+        else
+            displayControl &= ~flag;
+
+        writeCmd(displayControl);
+        flush();
+    }
+
+    @Override
+    public void setPosition(int row, int column) throws IOException {
+        writePosition(row, column);
+        flush();
+    }
+
+    private void writePosition(int row, int column) throws IOException {
+
+        if ((row >= ROWS) || (row < 0))
+            row = 0;
+        if ((column >= COLUMNS) || (column < 0))
+            column = 0;
+
+        writeCmd((byte) (CMD_CDDRAM | ((LCD_DDRAM_ADDR_COL1_ROW2 * (row)) + (column))));
+    }
+
+    @Override
+    public void setText(String val) throws IOException {
+        // written at an unknown position, the next render() has to rewrite every cell
+        shownValid = false;
+        for (char b : val.toCharArray()) {
+            writeData((byte) b);
+        }
+        flush();
+    }
+
+    protected final void writeData(byte value) throws IOException {
+        awaitReady();
+        writeNibble(true, value >> 4);
+        writeNibble(true, value);
+        afterInstruction(DATA_WRITE_NANOS * timingFactor);
+    }
+
+    protected final void writeCmd(byte command) throws IOException {
+        awaitReady();
+        writeNibble(false, command >> 4);
+        writeNibble(false, command);
+        boolean clearOrHome = command == CLEAR_DISPLAY || command == RETURN_HOME;
+        afterInstruction((clearOrHome ? CLEAR_HOME_NANOS : EXECUTION_NANOS) * timingFactor);
+    }
+
+    // a single nibble, used while the interface may still be in 8-bit mode
+    private void writeCmd4(byte command, long executionNanos) throws IOException {
+        awaitReady();
+        writeNibble(false, command);
+        afterInstruction(executionNanos * timingFactor);
+    }
+
+    /**
+     * Latches the low 4 bits of {@code nibble} into the controller, as data or instruction.
+     */
+    protected abstract void writeNibble(boolean data, int nibble) throws IOException;
+
+    /**
+     * Sends what the subclass has buffered.
+     */
+    protected void flush() throws IOException {
+    }
+
+    /**
+     * Called after the last nibble of an instruction; by default remembers when the
+     * controller will be ready again.
+     */
+    protected void afterInstruction(long executionNanos) throws IOException {
+        readyAtNanos = System.nanoTime() + executionNanos;
+    }
+
+    /**
+     * Waits until the previous instruction has been executed. Time spent by the caller since
+     * then counts, so back to back writes wait only for what is left.
+     */
+    protected void awaitReady() throws IOException {
+        waitNanos(readyAtNanos - System.nanoTime());
+    }
+
+    protected static void waitNanos(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        if (nanos > 2 * PARK_MARGIN_NANOS) {
+            LockSupport.parkNanos(nanos - PARK_MARGIN_NANOS);
+        }
+        while (System.nanoTime() - deadline < 0) {
+            // spin, Thread.sleep() cannot wait less than a millisecond
+        }
+    }
+
+    protected static void delay(int ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Timber.e(e);
+        }
+    }
+}
@@ -14,78 +14,62 @@ import timber.log.Timber;
  * Created by pserafin on 20.03.2018.
  */
 
-public class Lcd implements AutoCloseable {
+public class Lcd extends Hd44780 {
 
     private static final String TAG = Lcd.class.getSimpleName();
 
-    // HD44780U Commands
-    private static final byte CMD_CLEAR_DISPLAY = 0x01;
-    private static final byte CMD_RETURN_HOME = 0x02;
-    private static final byte CMD_ENTRY_MODE_SET = 0x04;
-    private static final byte CMD_DISPLAY_CTRL = 0x08;
-    private static final byte CMD_SHIFT = 0x10;
-    private static final byte CMD_FUNCTION_SET = 0x20;
-    private static final byte CMD_CCGRAM = 0x40;
-    private static final short CMD_CDDRAM = 0x80;
+    // longest instruction of a slow clone, after which the busy flag is considered stuck
+    private static final long BUSY_TIMEOUT_NANOS = CLEAR_HOME_NANOS * CONSERVATIVE_FACTOR;
 
-    //Entry register
-    private static final byte REG_ENTRY_MODE_SET_SH = 0x01;
-    private static final byte REG_ENTRY_MODE_SET_ID = 0x02;
-
-    //Display control register
-    private static final byte REG_CTRL_B = 0x01;
-    private static final byte REG_CTRL_C = 0x02;
-    private static final byte REG_CTRL_D = 0x04;
-
-    //Function set register
-    private static final byte REG_FUNC_F = 0x04;
-    private static final byte REG_FUNC_N = 0x08;
-    private static final byte REG_FUNC_DL = 0x10;
-
-    private static final byte CDSHIFT_RL = 0x04;
-
-
-    private static final byte LCD_DDRAM_ADDR_COL1_ROW2 = 0x40;
-
-    private static final byte CLEAR_DISPLAY = CMD_CLEAR_DISPLAY;
-    private static final byte RETURN_HOME = CMD_RETURN_HOME;
-    private static final byte SET_NO_SHIFT = (CMD_ENTRY_MODE_SET | REG_ENTRY_MODE_SET_ID);
-    private static final byte SET_8_BIT_MODE = ((CMD_FUNCTION_SET | REG_FUNC_DL) >> 4);
-    private static final byte SET_4_BIT_MODE = CMD_FUNCTION_SET >> 4;
-    private static final byte SET_2_ROWS_5_X_7_DOTS = (CMD_FUNCTION_SET | REG_FUNC_N);
-
-    private static final int ROWS = 2;
-    private static final int COLUMNS = 16;
-
-    private static byte lcdCtrl = CMD_DISPLAY_CTRL;
-
-    private Gpio resetPin;
+    // the enable pin toggles on every strobe, all other pins only change when needed
+    private CachedPin resetPin;
     private Gpio enablePin;
-    private List<Gpio> dataBus;
+    private CachedPin readWritePin;
+    private List<CachedPin> dataBus;
+
+    private boolean pollBusyFlag;
+    // the last instruction was a clear or return home
+    private boolean slowInstructionPending;
 
     public enum Pin {
-        RS, EN, D4, D5, D6, D7
+        RS, EN, D4, D5, D6, D7,
+        // optional, without it the driver relies on the datasheet execution times
+        RW
     }
 
     public Lcd() throws IOException {
+        this(false);
+    }
+
+    /**
+     * @param conservativeTiming triples all waits, for clones slower than the datasheet
+     */
+    public Lcd(boolean conservativeTiming) throws IOException {
+
+        super(conservativeTiming);
 
         PeripheralManager service = PeripheralManager.getInstance();
 
         try {
-            resetPin = service.openGpio(RpiSettings.getLcdGpioName(Pin.RS));
+            resetPin = new CachedPin(service.openGpio(RpiSettings.getLcdGpioName(Pin.RS)));
             resetPin.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
 
             enablePin = service.openGpio(RpiSettings.getLcdGpioName(Pin.EN));
             enablePin.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
 
+            String readWriteName = RpiSettings.getLcdGpioName(Pin.RW);
+            if (readWriteName != null) {
+                readWritePin = new CachedPin(service.openGpio(readWriteName));
+                readWritePin.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
+            }
 
             dataBus = Arrays.asList(
-                    service.openGpio(RpiSettings.getLcdGpioName(Pin.D4)),
-                    service.openGpio(RpiSettings.getLcdGpioName(Pin.D5)),
-                    service.openGpio(RpiSettings.getLcdGpioName(Pin.D6)),
-                    service.openGpio(RpiSettings.getLcdGpioName(Pin.D7)));
+                    new CachedPin(service.openGpio(RpiSettings.getLcdGpioName(Pin.D4))),
+                    new CachedPin(service.openGpio(RpiSettings.getLcdGpioName(Pin.D5))),
+                    new CachedPin(service.openGpio(RpiSettings.getLcdGpioName(Pin.D6))),
+                    new CachedPin(service.openGpio(RpiSettings.getLcdGpioName(Pin.D7))));
 
-            for (Gpio bit : dataBus) {
+            for (CachedPin bit : dataBus) {
                 bit.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
             }
         } catch (IOException e) {
@@ -96,134 +80,81 @@ public class Lcd implements AutoCloseable {
             throw e;
         }
 
-        delay(35);
-
-        //4-bit mode
-        writeCmd(SET_8_BIT_MODE, true);
-        delay(35);
-        writeCmd(SET_8_BIT_MODE, true);
-        delay(35);
-        writeCmd(SET_8_BIT_MODE, true);
-        delay(35);
-        writeCmd(SET_4_BIT_MODE, true);
-        delay(35);
-
-        //Set 2 rows, 5x7 dots
-        writeCmd(SET_2_ROWS_5_X_7_DOTS);
-        delay(35);
-
-        // Rest of the initialisation sequence
-        setDisplay(true);
-        setBlink(false);
-        setCursor(false);
-        clearDisplay();
-
-        writeCmd(SET_NO_SHIFT);
-        delay(35);
-    }
-
-    public void clearDisplay() throws IOException {
-        writeCmd(CLEAR_DISPLAY);
-        delay(5);
-    }
+        initialize();
 
-    public void returnHome() throws IOException {
-        writeCmd(RETURN_HOME);
-        delay(5);
+        // the busy flag can only be read once the interface is in 4-bit mode
+        pollBusyFlag = readWritePin != null;
     }
 
-    public void setDisplay(boolean state) throws IOException {
-        if (state)
-            lcdCtrl |= REG_CTRL_D;
-        else
-            lcdCtrl &= ~REG_CTRL_D;
-
-        writeCmd(lcdCtrl);
-    }
-
-    public void setCursor(boolean state) throws IOException {
-        if (state)
-            lcdCtrl |= REG_CTRL_C;
-        else
-            lcdCtrl &= ~REG_CTRL_C;
-
-        writeCmd(lcdCtrl);
-    }
-
-    public void setBlink(boolean state) throws IOException {
-        if (state)
-            lcdCtrl |= REG_CTRL_B;
-        else
-            lcdCtrl &= ~REG_CTRL_B;
-
-        writeCmd(lcdCtrl);
-    }
-
-
-    public void setPosition(int row, int column) throws IOException {
-
-        if ((row >= ROWS) || (row < 0))
-            row = 0;
-        if ((column >= COLUMNS) || (column < 0))
-            column = 0;
-
-        writeCmd((byte) (CMD_CDDRAM | ((LCD_DDRAM_ADDR_COL1_ROW2 * (row)) + (column))));
-    }
-
-    public void setText(String val) throws IOException {
-        resetPin.setValue(true);
-        for (char b : val.toCharArray()) {
-            setChar(b);
+    @Override
+    protected void writeNibble(boolean data, int nibble) throws IOException {
+        resetPin.setValue(data);
+        for (int i = 0; i < dataBus.size(); i++) {
+            CachedPin pin = dataBus.get(i);
+            pin.setValue(((nibble >> i & 0x01) != 0));
         }
+        strobe();
     }
 
-    private void setChar(char c) throws IOException {
-        resetPin.setValue(true);
-        write8((byte) c);
+    private void strobe() throws IOException {
+        // enable is low between strobes, and a GPIO call outlasts the setup and hold times
+        enablePin.setValue(true);
+        waitNanos(ENABLE_PULSE_NANOS * timingFactor);
+        enablePin.setValue(false);
     }
 
-    private void writeCmd(byte command) throws IOException {
-        writeCmd(command, false);
+    @Override
+    protected void afterInstruction(long executionNanos) throws IOException {
+        super.afterInstruction(executionNanos);
+        slowInstructionPending = executionNanos >= CLEAR_HOME_NANOS * timingFactor;
     }
 
-    private void writeCmd(byte command, boolean fourBitMode) throws IOException {
-        resetPin.setValue(false);
-        if (fourBitMode) {
-            write4(command);
+    /**
+     * With the R/W pin wired this polls the busy flag after a clear or return home instead
+     * of waiting for their datasheet execution time. Polling costs about 15 GPIO calls, far
+     * more than the fixed wait of any other instruction, so those keep the fixed wait.
+     */
+    @Override
+    protected void awaitReady() throws IOException {
+        if (pollBusyFlag && slowInstructionPending) {
+            slowInstructionPending = false;
+            awaitBusyFlagClear();
         } else {
-            write8(command);
+            super.awaitReady();
         }
     }
 
-    private void write8(byte value) throws IOException {
-        write4((byte) (value >> 4));
-        write4(value);
-    }
-
-    private void write4(byte value) throws IOException {
-        for (int i = 0; i < dataBus.size(); i++) {
-            Gpio pin = dataBus.get(i);
-            pin.setValue(((value >> i & 0x01) != 0));
+    private void awaitBusyFlagClear() throws IOException {
+        for (CachedPin pin : dataBus) {
+            pin.setDirection(Gpio.DIRECTION_IN);
+        }
+        resetPin.setValue(false);
+        readWritePin.setValue(true);
+        try {
+            long deadline = System.nanoTime() + BUSY_TIMEOUT_NANOS;
+            while (readBusyFlag()) {
+                if (System.nanoTime() - deadline > 0) {
+                    Timber.w("LCD busy flag stuck, falling back to fixed timing");
+                    pollBusyFlag = false;
+                    break;
+                }
+            }
+        } finally {
+            readWritePin.setValue(false);
+            for (CachedPin pin : dataBus) {
+                pin.restoreOutput();
+            }
         }
-        strobe();
-        delay(1);
     }
 
-    private void strobe() throws IOException {
-        enablePin.setValue(false);
-        delay(1);
+    private boolean readBusyFlag() throws IOException {
+        // the flag is D7 of the high nibble; the low nibble has to be clocked out as well
         enablePin.setValue(true);
-        delay(1);
+        waitNanos(DATA_DELAY_NANOS * timingFactor);
+        boolean busy = dataBus.get(3).getValue();
         enablePin.setValue(false);
-        delay(1);
-    }
-
-    private void delay(int ms) {
-        try {
-            Thread.sleep(ms);
-        } catch (InterruptedException e) {
-            Timber.e(e);
-        }
+        strobe();
+        return busy;
     }
 
     @Override
@@ -237,6 +168,14 @@ public class Lcd implements AutoCloseable {
             }
         }
 
+        if (readWritePin != null) {
+            try {
+                readWritePin.close();
+            } finally {
+                readWritePin = null;
+            }
+        }
+
         if (enablePin != null) {
             try {
                 enablePin.close();
@@ -245,14 +184,70 @@ public class Lcd implements AutoCloseable {
             }
         }
 
-        for (Gpio pin : dataBus) {
-            if (pin != null) {
-                try {
+        if (dataBus != null) {
+            for (CachedPin pin : dataBus) {
+                if (pin != null) {
                     pin.close();
-                } finally {
-                    pin = null;
                 }
             }
+            dataBus = null;
+        }
+    }
+
+    /**
+     * GPIO output which remembers the level it was last driven to, so driving the same level
+     * again costs no peripheral call. Switching to input and back with
+     * {@link #restoreOutput()} drives the remembered level again, so the next write still
+     * only changes the pins which differ.
+     */
+    private static class CachedPin implements AutoCloseable {
+
+        private static final int UNKNOWN = -1;
+
+        private final Gpio gpio;
+        private int level = UNKNOWN;
+        // level of the last output, kept while the pin is an input
+        private int outputLevel = UNKNOWN;
+
+        CachedPin(Gpio gpio) {
+            this.gpio = gpio;
+        }
+
+        void setValue(boolean value) throws IOException {
+            int newLevel = value ? 1 : 0;
+            if (newLevel != level) {
+                gpio.setValue(value);
+                level = newLevel;
+                outputLevel = newLevel;
+            }
+        }
+
+        boolean getValue() throws IOException {
+            return gpio.getValue();
+        }
+
+        void setDirection(int direction) throws IOException {
+            gpio.setDirection(direction);
+            if (direction == Gpio.DIRECTION_OUT_INITIALLY_LOW) {
+                level = 0;
+            } else if (direction == Gpio.DIRECTION_OUT_INITIALLY_HIGH) {
+                level = 1;
+            } else {
+                level = UNKNOWN;
+            }
+            if (level != UNKNOWN) {
+                outputLevel = level;
+            }
+        }
+
+        void restoreOutput() throws IOException {
+            setDirection(outputLevel == 1 ?
+                    Gpio.DIRECTION_OUT_INITIALLY_HIGH : Gpio.DIRECTION_OUT_INITIALLY_LOW);
+        }
+
+        @Override
+        public void close() throws IOException {
+            gpio.close();
         }
     }
 }
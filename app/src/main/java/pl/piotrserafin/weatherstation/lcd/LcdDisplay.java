@@ -0,0 +1,44 @@
+package pl.piotrserafin.weatherstation.lcd;
+
+import java.io.IOException;
+
+/**
+ * 2x16 character display with the HD44780 instruction set, independent of how the
+ * controller is wired.
+ */
+public interface LcdDisplay extends AutoCloseable {
+
+    void clearDisplay() throws IOException;
+
+    void returnHome() throws IOException;
+
+    void setDisplay(boolean state) throws IOException;
+
+    void setCursor(boolean state) throws IOException;
+
+    void setBlink(boolean state) throws IOException;
+
+    void setPosition(int row, int column) throws IOException;
+
+    void setText(String val) throws IOException;
+
+    /**
+     * Brings the display to the given frame, writing only the cells which differ from the
+     * last rendered frame.
+     */
+    void render(LcdFrame frame) throws IOException;
+
+    /**
+     * Writes both rows of the marquee in full, unshifted. Until the next {@link #render}
+     * the display is scrolled with {@link #scrollMarquee()} and {@link #returnHome()}.
+     */
+    void showMarquee(Marquee marquee) throws IOException;
+
+    /**
+     * Shifts the display one column to the left, a single instruction.
+     */
+    void scrollMarquee() throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
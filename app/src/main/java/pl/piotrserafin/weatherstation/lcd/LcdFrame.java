@@ -0,0 +1,85 @@
+package pl.piotrserafin.weatherstation.lcd;
+
+import java.util.Arrays;
+
+/**
+ * Contents of the whole 2x16 display. Rows are padded with spaces and cut at the display
+ * width, so a frame always describes every cell.
+ */
+public class LcdFrame {
+
+    public static final int ROWS = 2;
+    public static final int COLUMNS = 16;
+
+    private final char[][] cells = new char[ROWS][COLUMNS];
+
+    public LcdFrame() {
+        clear();
+    }
+
+    public LcdFrame(String firstRow, String secondRow) {
+        this();
+        setRow(0, firstRow);
+        setRow(1, secondRow);
+    }
+
+    public LcdFrame(LcdFrame other) {
+        copyFrom(other);
+    }
+
+    public LcdFrame setRow(int row, String text) {
+        Arrays.fill(cells[row], ' ');
+        return setText(row, 0, text);
+    }
+
+    public LcdFrame setText(int row, int column, String text) {
+        int length = Math.min(text.length(), COLUMNS - column);
+        for (int i = 0; i < length; i++) {
+            cells[row][column + i] = text.charAt(i);
+        }
+        return this;
+    }
+
+    public LcdFrame clear() {
+        for (char[] row : cells) {
+            Arrays.fill(row, ' ');
+        }
+        return this;
+    }
+
+    public LcdFrame setChar(int row, int column, char c) {
+        cells[row][column] = c;
+        return this;
+    }
+
+    public char getChar(int row, int column) {
+        return cells[row][column];
+    }
+
+    public void copyFrom(LcdFrame other) {
+        for (int row = 0; row < ROWS; row++) {
+            System.arraycopy(other.cells[row], 0, cells[row], 0, COLUMNS);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        return Arrays.deepEquals(cells, ((LcdFrame) o).cells);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.deepHashCode(cells);
+    }
+
+    @Override
+    public String toString() {
+        return "[" + new String(cells[0]) + "|" + new String(cells[1]) + "]";
+    }
+}
@@ -0,0 +1,164 @@
+package pl.piotrserafin.weatherstation.lcd;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import timber.log.Timber;
+
+/**
+ * Owns an {@link LcdDisplay} on a dedicated thread, so callers never wait for the display.
+ * Frames go through a single slot: a frame submitted before the previous one was picked up
+ * replaces it, and only the latest frame is ever written. A {@link Marquee} goes through the
+ * same slot and is scrolled until the next submission.
+ */
+public class LcdRenderer {
+
+    private static final long MARQUEE_STEP_MILLIS = 400;
+    // pause with either end of the rows visible
+    private static final long MARQUEE_HOLD_MILLIS = 1500;
+
+    public interface DisplayFactory {
+        LcdDisplay open() throws IOException;
+    }
+
+    private final DisplayFactory displayFactory;
+
+    // an LcdFrame or a Marquee
+    private final AtomicReference<Object> pendingUpdate = new AtomicReference<>();
+    private final Runnable pendingUpdateRenderer = this::renderPendingUpdate;
+    private final Runnable marqueeStepper = this::stepMarquee;
+
+    private HandlerThread renderThread;
+    private Handler renderHandler;
+
+    // accessed on the render thread only
+    private LcdDisplay display;
+    private Marquee marquee;
+    private int marqueeOffset;
+
+    public LcdRenderer(DisplayFactory displayFactory) {
+        this.displayFactory = displayFactory;
+    }
+
+    /**
+     * Opens the display on the render thread; frames submitted before are shown once it is
+     * initialized.
+     */
+    public void start() {
+        renderThread = new HandlerThread("LcdRenderThread");
+        renderThread.start();
+        renderHandler = new Handler(renderThread.getLooper());
+
+        renderHandler.post(this::openDisplay);
+        renderHandler.post(pendingUpdateRenderer);
+    }
+
+    /**
+     * Never blocks. The frame must not be modified afterwards.
+     */
+    public void submit(LcdFrame frame) {
+        offer(frame);
+    }
+
+    /**
+     * Never blocks. The marquee scrolls until the next submission.
+     */
+    public void submit(Marquee marquee) {
+        offer(marquee);
+    }
+
+    private void offer(Object update) {
+        // a replaced update had its render already posted, which will pick up this one
+        if (pendingUpdate.getAndSet(update) == null && renderHandler != null) {
+            renderHandler.post(pendingUpdateRenderer);
+        }
+    }
+
+    /**
+     * Drops a frame not written yet, then clears and closes the display on the render thread.
+     */
+    public void stop() {
+        if (renderThread == null) {
+            return;
+        }
+        pendingUpdate.set(null);
+        renderHandler.post(this::closeDisplay);
+        // delayed marquee steps are dropped
+        renderThread.quitSafely();
+        renderThread = null;
+    }
+
+    private void openDisplay() {
+        try {
+            display = displayFactory.open();
+        } catch (IOException e) {
+            Timber.e(e, "Cannot open LCD, frames will be dropped");
+        }
+    }
+
+    private void renderPendingUpdate() {
+        Object update = pendingUpdate.getAndSet(null);
+        if (update == null || display == null) {
+            return;
+        }
+        renderHandler.removeCallbacks(marqueeStepper);
+        marquee = null;
+        try {
+            if (update instanceof Marquee) {
+                marquee = (Marquee) update;
+                marqueeOffset = 0;
+                display.showMarquee(marquee);
+                renderHandler.postDelayed(marqueeStepper, MARQUEE_HOLD_MILLIS);
+            } else {
+                display.render((LcdFrame) update);
+            }
+        } catch (IOException e) {
+            Timber.e(e);
+        }
+    }
+
+    /**
+     * One display shift per step until the end of the longer row is visible, then back to
+     * the start with a single return home.
+     */
+    private void stepMarquee() {
+        if (marquee == null || display == null) {
+            return;
+        }
+        long nextStepMillis = MARQUEE_STEP_MILLIS;
+        try {
+            if (marqueeOffset < marquee.getOverflow()) {
+                display.scrollMarquee();
+                marqueeOffset++;
+                if (marqueeOffset == marquee.getOverflow()) {
+                    nextStepMillis = MARQUEE_HOLD_MILLIS;
+                }
+            } else {
+                display.returnHome();
+                marqueeOffset = 0;
+                nextStepMillis = MARQUEE_HOLD_MILLIS;
+            }
+        } catch (IOException e) {
+            Timber.e(e);
+        }
+        renderHandler.postDelayed(marqueeStepper, nextStepMillis);
+    }
+
+    private void closeDisplay() {
+        marquee = null;
+        if (display == null) {
+            return;
+        }
+        try {
+            display.clearDisplay();
+            display.close();
+        } catch (IOException e) {
+            Timber.e(e);
+        } finally {
+            display = null;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package pl.piotrserafin.weatherstation.lcd;
+
+/**
+ * Two rows longer than the display, scrolled by shifting the display instead of rewriting
+ * the rows. Each row is written once into its 40 character DDRAM row; the display shift
+ * moves both rows together, so the shorter row scrolls along with the longer one.
+ */
+public final class Marquee {
+
+    // characters of one DDRAM row, of which COLUMNS are visible
+    public static final int ROW_LENGTH = 40;
+
+    private final String firstRow;
+    private final String secondRow;
+
+    public Marquee(String firstRow, String secondRow) {
+        this.firstRow = cut(firstRow);
+        this.secondRow = cut(secondRow);
+    }
+
+    /**
+     * @return whether a row does not fit on the display
+     */
+    public static boolean isNeeded(String firstRow, String secondRow) {
+        return firstRow.length() > LcdFrame.COLUMNS || secondRow.length() > LcdFrame.COLUMNS;
+    }
+
+    private static String cut(String row) {
+        return row.length() > ROW_LENGTH ? row.substring(0, ROW_LENGTH) : row;
+    }
+
+    public String getFirstRow() {
+        return firstRow;
+    }
+
+    public String getSecondRow() {
+        return secondRow;
+    }
+
+    /**
+     * @return shifts until the end of the longer row is visible
+     */
+    public int getOverflow() {
+        return Math.max(0, Math.max(firstRow.length(), secondRow.length()) - LcdFrame.COLUMNS);
+    }
+
+    @Override
+    public String toString() {
+        return "Marquee{" + firstRow + " | " + secondRow + "}";
+    }
+}
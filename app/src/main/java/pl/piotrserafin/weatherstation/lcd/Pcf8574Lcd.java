@@ -0,0 +1,137 @@
+package pl.piotrserafin.weatherstation.lcd;
+
+import com.google.android.things.pio.I2cDevice;
+import com.google.android.things.pio.PeripheralManager;
+
+import java.io.IOException;
+
+/**
+ * HD44780 behind a PCF8574 I2C backpack. Every expander output change is one byte on the
+ * bus, so nibbles are encoded into a buffer and each public operation goes out as a single
+ * I2C write; the bus time of the queued bytes covers the short execution times.
+ */
+public class Pcf8574Lcd extends Hd44780 {
+
+    public static final int DEFAULT_ADDRESS = 0x27;
+
+    // expander outputs of the common backpacks, D4..D7 on P4..P7
+    private static final int BIT_RS = 0x01;
+    private static final int BIT_RW = 0x02;
+    private static final int BIT_EN = 0x04;
+    private static final int BIT_BACKLIGHT = 0x08;
+
+    // one byte (8 bits + ack) at 400 kHz, the least time a queued byte keeps the bus busy
+    private static final long BYTE_NANOS = 9 * 2500;
+    // longer waits are cheaper to flush and sleep than to pad with idle bytes
+    private static final int MAX_PADDING = 8;
+
+    private static final int BUFFER_SIZE = 256;
+
+    private I2cDevice device;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int length;
+    // expander outputs as of the last queued byte
+    private int outputs;
+    private int backlight = BIT_BACKLIGHT;
+
+    public Pcf8574Lcd(String i2cBus) throws IOException {
+        this(i2cBus, DEFAULT_ADDRESS, false);
+    }
+
+    /**
+     * @param conservativeTiming triples all waits, for clones slower than the datasheet
+     */
+    public Pcf8574Lcd(String i2cBus, int address, boolean conservativeTiming) throws IOException {
+
+        super(conservativeTiming);
+
+        device = PeripheralManager.getInstance().openI2cDevice(i2cBus, address);
+
+        try {
+            // the expander powers up with all outputs high, which leaves EN asserted
+            queue(backlight);
+            flush();
+            initialize();
+        } catch (IOException e) {
+            try {
+                close();
+            } catch (IOException ignored) {
+            }
+            throw e;
+        }
+    }
+
+    public void setBacklight(boolean state) throws IOException {
+        backlight = state ? BIT_BACKLIGHT : 0;
+        queue((outputs & ~BIT_BACKLIGHT) | backlight);
+        flush();
+    }
+
+    /**
+     * Two bytes with EN high, then low; a third one ahead of them when RS changes, so it
+     * settles before EN rises. R/W stays low, the busy flag is never read.
+     */
+    @Override
+    protected void writeNibble(boolean data, int nibble) throws IOException {
+        int value = ((nibble & 0x0F) << 4) | (data ? BIT_RS : 0) | backlight;
+        if (((outputs ^ value) & (BIT_RS | BIT_RW)) != 0) {
+            queue(value);
+        }
+        queue(value | BIT_EN);
+        queue(value);
+    }
+
+    /**
+     * Short waits are covered by idle bytes queued behind the instruction, long ones flush
+     * what is queued and wait here.
+     */
+    @Override
+    protected void afterInstruction(long executionNanos) throws IOException {
+        // the EN low byte itself takes one byte time before the next output changes
+        int padding = (int) ((executionNanos + BYTE_NANOS - 1) / BYTE_NANOS) - 1;
+        if (padding <= MAX_PADDING) {
+            for (int i = 0; i < padding; i++) {
+                queue(outputs);
+            }
+        } else {
+            flush();
+            waitNanos(executionNanos);
+        }
+    }
+
+    @Override
+    protected void awaitReady() {
+        // waits are handled in afterInstruction()
+    }
+
+    private void queue(int value) throws IOException {
+        if (length == buffer.length) {
+            flush();
+        }
+        buffer[length++] = (byte) value;
+        outputs = value;
+    }
+
+    @Override
+    protected void flush() throws IOException {
+        if (length > 0) {
+            try {
+                device.write(buffer, length);
+            } finally {
+                length = 0;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (device != null) {
+            try {
+                device.close();
+            } finally {
+                device = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package pl.piotrserafin.weatherstation.pipeline;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Chooses a sampling interval per sensor. Sensors with a {@link Policy} are sampled faster
+ * when their smoothed rate of change approaches the policy's slope threshold and slower when
+ * the signal is flat; all other sensors use the default interval. The rate of change is the
+ * least-squares slope over a fixed time window, so noise averages out and faster sampling
+ * makes the estimate steadier rather than larger. Samples arriving faster than the window
+ * holds points are averaged into evenly spaced points, so the fit always spans the whole
+ * window.
+ * Times are in
+ * {@link android.os.SystemClock#uptimeMillis()} except sample timestamps.
+ */
+public class AdaptiveSampler {
+
+    // readings which arrive slightly early still count as due
+    private static final long DUE_TOLERANCE_MS = 50;
+    private static final float SLOPE_SMOOTHING = 0.3f;
+    private static final long SLOPE_WINDOW_MS = 10 * 60 * 1000;
+    private static final int SLOPE_CAPACITY = 64;
+    // samples closer than this to the previous point are averaged into the newest one
+    private static final long SLOPE_SPACING_MS = SLOPE_WINDOW_MS / (SLOPE_CAPACITY - 1);
+
+    private final Map<String, SensorState> states = new HashMap<>();
+    private Map<String, Policy> policies = Collections.emptyMap();
+    private long defaultIntervalMillis;
+    private long minIntervalMillis;
+
+    public AdaptiveSampler(long defaultIntervalMillis) {
+        this.defaultIntervalMillis = defaultIntervalMillis;
+    }
+
+    /**
+     * @param minIntervalMillis floor applied to every interval, e.g. the conversion time of
+     *                          the slowest sensor
+     */
+    public synchronized void configure(long defaultIntervalMillis, Map<String, Policy> policies,
+                                       long minIntervalMillis) {
+        this.defaultIntervalMillis = Math.max(defaultIntervalMillis, minIntervalMillis);
+        this.policies = policies;
+        this.minIntervalMillis = minIntervalMillis;
+        for (Map.Entry<String, SensorState> entry : states.entrySet()) {
+            SensorState state = entry.getValue();
+            state.intervalMillis = computeInterval(entry.getKey(), Math.abs(state.slopePerHour));
+            state.nextDue = Math.min(state.nextDue, state.lastSampled + state.intervalMillis);
+        }
+    }
+
+    public synchronized boolean isDue(String sensor, long now) {
+        SensorState state = states.get(sensor);
+        return state == null || state.nextDue <= now + DUE_TOLERANCE_MS;
+    }
+
+    public synchronized void onSampled(String sensor, long now, long timestamp, float value) {
+        SensorState state = states.get(sensor);
+        if (state == null) {
+            state = new SensorState();
+            states.put(sensor, state);
+        }
+        if (!Float.isNaN(value) && state.add(timestamp, value)) {
+            float slope = state.fitSlopePerHour();
+            state.slopePerHour += SLOPE_SMOOTHING * (slope - state.slopePerHour);
+        }
+        state.lastSampled = now;
+        state.intervalMillis = computeInterval(sensor, Math.abs(state.slopePerHour));
+        state.nextDue = now + state.intervalMillis;
+    }
+
+    /**
+     * Returns when the earliest of the given sensors is due next. Sensors which were due but
+     * did not deliver a sample are retried after their interval, unsampled ones after the
+     * default interval.
+     */
+    public synchronized long getNextDue(Collection<String> sensors, long now) {
+        long nextDue = now + defaultIntervalMillis;
+        for (String sensor : sensors) {
+            SensorState state = states.get(sensor);
+            if (state != null) {
+                long sensorDue = state.nextDue > now ? state.nextDue : now + state.intervalMillis;
+                nextDue = Math.min(nextDue, sensorDue);
+            }
+        }
+        return nextDue;
+    }
+
+    public synchronized Map<String, Long> getEffectiveIntervals() {
+        Map<String, Long> intervals = new HashMap<>();
+        for (Map.Entry<String, SensorState> entry : states.entrySet()) {
+            intervals.put(entry.getKey(), entry.getValue().intervalMillis);
+        }
+        return intervals;
+    }
+
+    private long computeInterval(String sensor, float slopePerHour) {
+        Policy policy = policies.get(sensor);
+        if (policy == null) {
+            return defaultIntervalMillis;
+        }
+        if (policy.slopeThresholdPerHour <= 0 || slopePerHour >= policy.slopeThresholdPerHour) {
+            return Math.max(policy.minIntervalMillis, minIntervalMillis);
+        }
+        float ratio = slopePerHour / policy.slopeThresholdPerHour;
+        return Math.max(policy.maxIntervalMillis -
+                (long) ((policy.maxIntervalMillis - policy.minIntervalMillis) * ratio),
+                minIntervalMillis);
+    }
+
+    private static class SensorState {
+        // samples of the slope window, oldest at first
+        final long[] timestamps = new long[SLOPE_CAPACITY];
+        final float[] values = new float[SLOPE_CAPACITY];
+        int first;
+        int count;
+        // samples averaged into the newest point
+        int merged;
+        long lastTimestamp = Long.MIN_VALUE;
+
+        long lastSampled;
+        // signed, the sign is dropped only when choosing the interval
+        float slopePerHour;
+        long intervalMillis;
+        long nextDue;
+
+        /**
+         * Returns whether there are enough samples to fit a slope. Samples older than the
+         * window are dropped, but the last two are always kept.
+         */
+        boolean add(long timestamp, float value) {
+            if (timestamp <= lastTimestamp) {
+                return false;
+            }
+            lastTimestamp = timestamp;
+            if (count >= 2 && timestamp - timestamps[(first + count - 2) % SLOPE_CAPACITY] <
+                    SLOPE_SPACING_MS) {
+                int index = (first + count - 1) % SLOPE_CAPACITY;
+                merged++;
+                timestamps[index] += (timestamp - timestamps[index]) / merged;
+                values[index] += (value - values[index]) / merged;
+                return true;
+            }
+            if (count == SLOPE_CAPACITY) {
+                first = (first + 1) % SLOPE_CAPACITY;
+                count--;
+            }
+            int index = (first + count) % SLOPE_CAPACITY;
+            timestamps[index] = timestamp;
+            values[index] = value;
+            merged = 1;
+            count++;
+            while (count > 2 && timestamps[first] < timestamp - SLOPE_WINDOW_MS) {
+                first = (first + 1) % SLOPE_CAPACITY;
+                count--;
+            }
+            return count >= 2;
+        }
+
+        float fitSlopePerHour() {
+            // times relative to the newest sample keep the sums well conditioned
+            long origin = timestamps[(first + count - 1) % SLOPE_CAPACITY];
+            double sumT = 0;
+            double sumV = 0;
+            for (int i = 0; i < count; i++) {
+                int index = (first + i) % SLOPE_CAPACITY;
+                sumT += timestamps[index] - origin;
+                sumV += values[index];
+            }
+            double meanT = sumT / count;
+            double meanV = sumV / count;
+            double covariance = 0;
+            double variance = 0;
+            for (int i = 0; i < count; i++) {
+                int index = (first + i) % SLOPE_CAPACITY;
+                double t = timestamps[index] - origin - meanT;
+                covariance += t * (values[index] - meanV);
+                variance += t * t;
+            }
+            return variance == 0 ? 0f : (float) (covariance / variance * 3600000.0);
+        }
+    }
+
+    public static class Policy {
+        public long minIntervalMillis;
+        public long maxIntervalMillis;
+        public float slopeThresholdPerHour;
+
+        @Override
+        public String toString() {
+            return "Policy{" +
+                    "minIntervalMillis=" + minIntervalMillis +
+                    ", maxIntervalMillis=" + maxIntervalMillis +
+                    ", slopeThresholdPerHour=" + slopeThresholdPerHour +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package pl.piotrserafin.weatherstation.pipeline;
+
+/**
+ * Cascaded integrator-comb decimator on fixed point samples, with a differential delay of one.
+ * The integrators may wrap around; two's complement arithmetic still gives the right output
+ * as long as {@code factor^order * max|sample|} fits in a long. The first {@code order - 1}
+ * outputs cover a partially filled filter and are suppressed.
+ * Not thread safe, owned by the acquisition thread.
+ */
+public class CicDecimator {
+
+    private final int factor;
+    private final long gain;
+    private final long[] integrators;
+    private final long[] combs;
+
+    private int phase;
+    private int warmup;
+    private long output;
+
+    public CicDecimator(int order, int factor) {
+        if (order < 1 || factor < 1) {
+            throw new IllegalArgumentException("Invalid CIC order " + order +
+                    " or decimation factor " + factor);
+        }
+        long gain = 1;
+        for (int i = 0; i < order; i++) {
+            gain *= factor;
+        }
+        this.factor = factor;
+        this.gain = gain;
+        this.integrators = new long[order];
+        this.combs = new long[order];
+        this.warmup = order - 1;
+    }
+
+    /**
+     * Returns true if this sample completed an output, which is then available from
+     * {@link #getOutput()}.
+     */
+    public boolean add(long sample) {
+        long value = sample;
+        for (int i = 0; i < integrators.length; i++) {
+            integrators[i] += value;
+            value = integrators[i];
+        }
+        if (++phase < factor) {
+            return false;
+        }
+        phase = 0;
+        for (int i = 0; i < combs.length; i++) {
+            long previous = combs[i];
+            combs[i] = value;
+            value -= previous;
+        }
+        if (warmup > 0) {
+            warmup--;
+            return false;
+        }
+        output = value / gain;
+        return true;
+    }
+
+    public long getOutput() {
+        return output;
+    }
+}
@@ -0,0 +1,85 @@
+package pl.piotrserafin.weatherstation.pipeline;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import pl.piotrserafin.weatherstation.model.SensorData;
+
+/**
+ * Send-on-delta filter: a reading passes only if it moved beyond the sensor's deadband
+ * since the last reported value, or if the sensor has been silent for too long.
+ * Not thread safe, owned by the publishing thread.
+ */
+public class DeadbandFilter {
+
+    private static final Threshold DEFAULT_THRESHOLD = new Threshold();
+
+    private final Map<String, SensorState> states = new HashMap<>();
+    private Map<String, Threshold> thresholds = Collections.emptyMap();
+
+    public void setThresholds(Map<String, Threshold> thresholds) {
+        this.thresholds = thresholds;
+        // re-report everything with the new thresholds
+        states.clear();
+    }
+
+    public void filter(List<SensorData> readings, List<SensorData> output) {
+        for (SensorData data : readings) {
+            if (shouldReport(data)) {
+                output.add(data);
+            }
+        }
+    }
+
+    private boolean shouldReport(SensorData data) {
+        SensorState state = states.get(data.getSensorName());
+        if (state == null) {
+            state = new SensorState();
+            states.put(data.getSensorName(), state);
+            state.report(data);
+            return true;
+        }
+        Threshold threshold = thresholds.get(data.getSensorName());
+        if (threshold == null) {
+            threshold = DEFAULT_THRESHOLD;
+        }
+        float delta = Math.abs(data.getValue() - state.lastValue);
+        float band = Math.max(threshold.absolute, threshold.relative * Math.abs(state.lastValue));
+        boolean silentTooLong = threshold.maxSilenceMillis > 0 &&
+                data.getTimestamp() - state.lastReportTime >= threshold.maxSilenceMillis;
+        if (delta > band || silentTooLong) {
+            state.report(data);
+            return true;
+        }
+        return false;
+    }
+
+    private static class SensorState {
+        float lastValue;
+        long lastReportTime;
+
+        void report(SensorData data) {
+            lastValue = data.getValue();
+            lastReportTime = data.getTimestamp();
+        }
+    }
+
+    public static class Threshold {
+        public static final long DEFAULT_MAX_SILENCE_MILLIS = 60*60*1000L;
+
+        public float absolute;
+        public float relative;
+        public long maxSilenceMillis = DEFAULT_MAX_SILENCE_MILLIS;
+
+        @Override
+        public String toString() {
+            return "Threshold{" +
+                    "absolute=" + absolute +
+                    ", relative=" + relative +
+                    ", maxSilenceMillis=" + maxSilenceMillis +
+                    '}';
+        }
+    }
+}
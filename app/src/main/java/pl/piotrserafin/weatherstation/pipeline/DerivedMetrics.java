@@ -0,0 +1,270 @@
+package pl.piotrserafin.weatherstation.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import pl.piotrserafin.weatherstation.model.SensorData;
+
+/**
+ * Virtual sensors computed from temperature [C], humidity [%RH] and pressure [hPa] readings
+ * of one conversion, i.e. with equal suffix and timestamp. Every device with a
+ * "temperature&lt;suffix&gt;" sensor gets "dew-point&lt;suffix&gt;" [C], "heat-index&lt;suffix&gt;" [C],
+ * "absolute-humidity&lt;suffix&gt;" [g/m3] and "sea-level-pressure&lt;suffix&gt;" [hPa], as far
+ * as it has the inputs. Exponentials and logarithms come from tables interpolated
+ * linearly, so no {@code Math.exp} or {@code Math.pow} is evaluated per sample.
+ * Called from the sampling thread; the sensor lists are also read by the publishing thread.
+ */
+public class DerivedMetrics {
+
+    public static final String DEW_POINT = "dew-point";
+    public static final String HEAT_INDEX = "heat-index";
+    public static final String ABSOLUTE_HUMIDITY = "absolute-humidity";
+    public static final String SEA_LEVEL_PRESSURE = "sea-level-pressure";
+
+    private static final String TEMPERATURE = "temperature";
+    private static final String HUMIDITY = "humidity";
+    private static final String PRESSURE = "pressure";
+
+    // Magnus formula over water (WMO), saturation vapour pressure in hPa
+    private static final float MAGNUS_B = 17.62f;
+    private static final float MAGNUS_C = 243.12f;
+    private static final float MAGNUS_E0 = 6.112f;
+
+    // temperature tables cover the BME280 operating range
+    private static final float TABLE_MIN_T = -40f;
+    private static final float TABLE_MAX_T = 85f;
+    private static final float TABLE_STEPS_PER_DEGREE = 4f;
+    private static final int TABLE_SIZE =
+            (int) ((TABLE_MAX_T - TABLE_MIN_T) * TABLE_STEPS_PER_DEGREE) + 1;
+    private static final float[] SATURATION_PRESSURE = new float[TABLE_SIZE];
+
+    // ln(RH / 100) for RH in (0, 100]
+    private static final float LN_STEPS_PER_PERCENT = 4f;
+    private static final float[] LN_RELATIVE_HUMIDITY = new float[401];
+
+    static {
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            double t = TABLE_MIN_T + i / TABLE_STEPS_PER_DEGREE;
+            SATURATION_PRESSURE[i] = (float) (MAGNUS_E0 * Math.exp(MAGNUS_B * t / (MAGNUS_C + t)));
+        }
+        // the first entry stands for the smallest step, ln(0) is not usable
+        LN_RELATIVE_HUMIDITY[0] = (float) Math.log(1 / LN_STEPS_PER_PERCENT / 100);
+        for (int i = 1; i < LN_RELATIVE_HUMIDITY.length; i++) {
+            LN_RELATIVE_HUMIDITY[i] = (float) Math.log(i / LN_STEPS_PER_PERCENT / 100);
+        }
+    }
+
+    private final List<Group> groups = new ArrayList<>();
+    private final Set<String> enabled = new HashSet<>();
+    // p0 / p as a function of temperature at the configured altitude
+    private final float[] seaLevelFactor = new float[TABLE_SIZE];
+
+    public DerivedMetrics() {
+        configure(new ArrayList<>(), 0);
+    }
+
+    /**
+     * Rebuilds the virtual sensors from the physical sensors available, keeping the enabled
+     * ones which still exist.
+     */
+    public synchronized void configure(Collection<String> physicalSensors, float altitudeMeters) {
+        groups.clear();
+        Set<String> available = new HashSet<>(physicalSensors);
+        for (String sensor : physicalSensors) {
+            if (!sensor.startsWith(TEMPERATURE)) {
+                continue;
+            }
+            String suffix = sensor.substring(TEMPERATURE.length());
+            if (!suffix.isEmpty() && !suffix.startsWith("-")) {
+                continue;
+            }
+            Group group = new Group(suffix, available.contains(HUMIDITY + suffix),
+                    available.contains(PRESSURE + suffix));
+            groups.add(group);
+        }
+        enabled.retainAll(getAvailableSensors());
+        // international barometric formula, reduced with the measured temperature
+        float lapse = 0.0065f * altitudeMeters;
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            double t = TABLE_MIN_T + i / TABLE_STEPS_PER_DEGREE;
+            seaLevelFactor[i] = (float) Math.pow(1 - lapse / (t + lapse + 273.15), -5.257);
+        }
+    }
+
+    public synchronized List<String> getAvailableSensors() {
+        List<String> sensors = new ArrayList<>();
+        for (Group group : groups) {
+            if (group.humidity != null) {
+                sensors.add(group.dewPoint);
+                sensors.add(group.heatIndex);
+                sensors.add(group.absoluteHumidity);
+            }
+            if (group.pressure != null) {
+                sensors.add(group.seaLevelPressure);
+            }
+        }
+        return sensors;
+    }
+
+    public synchronized List<String> getEnabledSensors() {
+        List<String> sensors = getAvailableSensors();
+        sensors.retainAll(enabled);
+        return sensors;
+    }
+
+    public synchronized void setEnabled(String sensor, boolean enable) {
+        if (enable) {
+            enabled.add(sensor);
+        } else {
+            enabled.remove(sensor);
+        }
+    }
+
+    /**
+     * Returns the physical sensors the given virtual sensor is computed from.
+     */
+    public synchronized List<String> getInputs(String sensor) {
+        List<String> inputs = new ArrayList<>();
+        for (Group group : groups) {
+            if (sensor.equals(group.seaLevelPressure)) {
+                inputs.add(group.temperature);
+                inputs.add(group.pressure);
+            } else if (sensor.equals(group.dewPoint) || sensor.equals(group.heatIndex) ||
+                    sensor.equals(group.absoluteHumidity)) {
+                inputs.add(group.temperature);
+                inputs.add(group.humidity);
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * Appends the enabled virtual sensors which can be computed from {@code readings}.
+     */
+    public synchronized void derive(List<SensorData> readings) {
+        if (enabled.isEmpty()) {
+            return;
+        }
+        for (Group group : groups) {
+            SensorData temperature = find(readings, group.temperature, -1);
+            if (temperature == null) {
+                continue;
+            }
+            long timestamp = temperature.getTimestamp();
+            float t = temperature.getValue();
+            SensorData humidity = group.humidity == null ?
+                    null : find(readings, group.humidity, timestamp);
+            if (humidity != null) {
+                deriveFromHumidity(readings, group, timestamp, t, humidity.getValue());
+            }
+            // the reduction is insensitive enough to the temperature to also accept pressure
+            // from another conversion, e.g. decimated high-rate values
+            SensorData pressure = group.pressure == null ?
+                    null : find(readings, group.pressure, -1);
+            if (pressure != null && enabled.contains(group.seaLevelPressure)) {
+                readings.add(new SensorData(pressure.getTimestamp(), group.seaLevelPressure,
+                        pressure.getValue() * lookup(seaLevelFactor, t)));
+            }
+        }
+    }
+
+    private void deriveFromHumidity(List<SensorData> readings, Group group, long timestamp,
+                                    float t, float rh) {
+        if (Float.isNaN(t) || Float.isNaN(rh)) {
+            return;
+        }
+        float vapourPressure = lookup(SATURATION_PRESSURE, t) * rh / 100;
+        if (enabled.contains(group.dewPoint)) {
+            float gamma = lookupLnRelativeHumidity(rh) + MAGNUS_B * t / (MAGNUS_C + t);
+            readings.add(new SensorData(timestamp, group.dewPoint,
+                    MAGNUS_C * gamma / (MAGNUS_B - gamma)));
+        }
+        if (enabled.contains(group.absoluteHumidity)) {
+            // rho = e / (Rv * T), with e in hPa and Rv = 461.5 J/(kg K)
+            readings.add(new SensorData(timestamp, group.absoluteHumidity,
+                    216.7f * vapourPressure / (t + 273.15f)));
+        }
+        if (enabled.contains(group.heatIndex)) {
+            readings.add(new SensorData(timestamp, group.heatIndex, heatIndex(t, rh)));
+        }
+    }
+
+    /**
+     * NOAA heat index (Rothfusz regression with its adjustments), only multiply-adds and one
+     * square root.
+     */
+    static float heatIndex(float celsius, float rh) {
+        float t = celsius * 1.8f + 32;
+        float hi = 0.5f * (t + 61 + (t - 68) * 1.2f + rh * 0.094f);
+        if ((hi + t) / 2 >= 80) {
+            hi = -42.379f + 2.04901523f * t + 10.14333127f * rh - 0.22475541f * t * rh -
+                    0.00683783f * t * t - 0.05481717f * rh * rh + 0.00122874f * t * t * rh +
+                    0.00085282f * t * rh * rh - 0.00000199f * t * t * rh * rh;
+            if (rh < 13 && t >= 80 && t <= 112) {
+                hi -= (13 - rh) / 4 * (float) Math.sqrt((17 - Math.abs(t - 95)) / 17);
+            } else if (rh > 85 && t >= 80 && t <= 87) {
+                hi += (rh - 85) / 10 * (87 - t) / 5;
+            }
+        }
+        return (hi - 32) / 1.8f;
+    }
+
+    private static float lookup(float[] table, float t) {
+        float position = (t - TABLE_MIN_T) * TABLE_STEPS_PER_DEGREE;
+        if (position <= 0) {
+            return table[0];
+        }
+        if (position >= TABLE_SIZE - 1) {
+            return table[TABLE_SIZE - 1];
+        }
+        int index = (int) position;
+        return table[index] + (table[index + 1] - table[index]) * (position - index);
+    }
+
+    private static float lookupLnRelativeHumidity(float rh) {
+        float position = rh * LN_STEPS_PER_PERCENT;
+        if (position <= 1) {
+            return LN_RELATIVE_HUMIDITY[0];
+        }
+        if (position >= LN_RELATIVE_HUMIDITY.length - 1) {
+            return 0;
+        }
+        int index = (int) position;
+        return LN_RELATIVE_HUMIDITY[index] +
+                (LN_RELATIVE_HUMIDITY[index + 1] - LN_RELATIVE_HUMIDITY[index]) * (position - index);
+    }
+
+    private static SensorData find(List<SensorData> readings, String sensor, long timestamp) {
+        for (int i = 0; i < readings.size(); i++) {
+            SensorData data = readings.get(i);
+            if (data.getSensorName().equals(sensor) &&
+                    (timestamp < 0 || data.getTimestamp() == timestamp)) {
+                return data;
+            }
+        }
+        return null;
+    }
+
+    private static class Group {
+        final String temperature;
+        final String humidity;
+        final String pressure;
+        final String dewPoint;
+        final String heatIndex;
+        final String absoluteHumidity;
+        final String seaLevelPressure;
+
+        Group(String suffix, boolean hasHumidity, boolean hasPressure) {
+            temperature = TEMPERATURE + suffix;
+            humidity = hasHumidity ? HUMIDITY + suffix : null;
+            pressure = hasPressure ? PRESSURE + suffix : null;
+            dewPoint = DEW_POINT + suffix;
+            heatIndex = HEAT_INDEX + suffix;
+            absoluteHumidity = ABSOLUTE_HUMIDITY + suffix;
+            seaLevelPressure = SEA_LEVEL_PRESSURE + suffix;
+        }
+    }
+}
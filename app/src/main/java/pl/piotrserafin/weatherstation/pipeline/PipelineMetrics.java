@@ -0,0 +1,89 @@
+package pl.piotrserafin.weatherstation.pipeline;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queue depth and wait time statistics of the sampling to publishing handover. Each side
+ * only writes its own counters, except the peak depth which the consumer takes atomically;
+ * {@link #snapshotAndReset()} is called from the consumer.
+ */
+public class PipelineMetrics {
+
+    // producer side
+    private volatile long offered;
+    private volatile long dropped;
+    private final AtomicInteger maxDepth = new AtomicInteger();
+
+    // consumer side
+    private long drained;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+
+    private long lastOffered;
+    private long lastDropped;
+
+    public void onOffer(boolean accepted, int depth) {
+        offered++;
+        if (!accepted) {
+            dropped++;
+        }
+        int currentMax = maxDepth.get();
+        while (depth > currentMax && !maxDepth.compareAndSet(currentMax, depth)) {
+            currentMax = maxDepth.get();
+        }
+    }
+
+    public void onDrain(SampleBatch batch) {
+        long wait = System.nanoTime() - batch.getEnqueuedAtNanos();
+        drained++;
+        totalWaitNanos += wait;
+        if (wait > maxWaitNanos) {
+            maxWaitNanos = wait;
+        }
+    }
+
+    /**
+     * Returns the metrics gathered since the previous call.
+     */
+    public Snapshot snapshotAndReset() {
+        Snapshot snapshot = new Snapshot();
+        long currentOffered = offered;
+        long currentDropped = dropped;
+        snapshot.offered = currentOffered - lastOffered;
+        snapshot.dropped = currentDropped - lastDropped;
+        snapshot.maxDepth = maxDepth.getAndSet(0);
+        snapshot.drained = drained;
+        snapshot.meanWaitMillis = drained == 0 ? 0 :
+                TimeUnit.NANOSECONDS.toMillis(totalWaitNanos / drained);
+        snapshot.maxWaitMillis = TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
+
+        lastOffered = currentOffered;
+        lastDropped = currentDropped;
+        drained = 0;
+        totalWaitNanos = 0;
+        maxWaitNanos = 0;
+        return snapshot;
+    }
+
+    public static class Snapshot {
+        public long offered;
+        public long dropped;
+        public long drained;
+        public int maxDepth;
+        public long meanWaitMillis;
+        public long maxWaitMillis;
+
+        @Override
+        public String toString() {
+            return "Snapshot{" +
+                    "offered=" + offered +
+                    ", dropped=" + dropped +
+                    ", drained=" + drained +
+                    ", maxDepth=" + maxDepth +
+                    ", meanWaitMillis=" + meanWaitMillis +
+                    ", maxWaitMillis=" + maxWaitMillis +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package pl.piotrserafin.weatherstation.pipeline;
+
+/**
+ * What the hub sends to IoT Core for every telemetry period.
+ */
+public enum PublishMode {
+    /** Every sampled batch as it was read. */
+    RAW("raw"),
+    /** One window summary per sensor and telemetry period. */
+    SUMMARY("summary"),
+    /** Only readings which moved beyond their deadband, plus a heartbeat per sensor. */
+    DELTA("delta");
+
+    private final String configName;
+
+    PublishMode(String configName) {
+        this.configName = configName;
+    }
+
+    public String getConfigName() {
+        return configName;
+    }
+
+    public static PublishMode fromConfigName(String name) {
+        for (PublishMode mode : values()) {
+            if (mode.configName.equals(name)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown publish mode " + name);
+    }
+}
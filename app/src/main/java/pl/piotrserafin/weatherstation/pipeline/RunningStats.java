@@ -0,0 +1,76 @@
+package pl.piotrserafin.weatherstation.pipeline;
+
+/**
+ * Tumbling window statistics with O(1) updates (Welford's algorithm for the variance).
+ */
+public class RunningStats {
+    private long windowStart;
+    private int count;
+    private double mean;
+    private double m2;
+    private float min;
+    private float max;
+    private float last;
+
+    public RunningStats() {
+        reset(0);
+    }
+
+    /**
+     * NaN readings are skipped, so a window of only failed readings has no samples.
+     */
+    public void add(float value) {
+        if (Float.isNaN(value)) {
+            return;
+        }
+        count++;
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+        last = value;
+    }
+
+    public void reset(long windowStart) {
+        this.windowStart = windowStart;
+        count = 0;
+        mean = 0;
+        m2 = 0;
+        min = Float.POSITIVE_INFINITY;
+        max = Float.NEGATIVE_INFINITY;
+        last = Float.NaN;
+    }
+
+    public long getWindowStart() {
+        return windowStart;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public float getMin() {
+        return min;
+    }
+
+    public float getMax() {
+        return max;
+    }
+
+    public float getMean() {
+        return (float) mean;
+    }
+
+    public float getStdDev() {
+        return count < 2 ? 0f : (float) Math.sqrt(m2 / (count - 1));
+    }
+
+    public float getLast() {
+        return last;
+    }
+}
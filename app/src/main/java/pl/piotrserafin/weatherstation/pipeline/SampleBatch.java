@@ -0,0 +1,27 @@
+package pl.piotrserafin.weatherstation.pipeline;
+
+import java.util.List;
+
+import pl.piotrserafin.weatherstation.model.SensorData;
+
+/**
+ * Readings collected in one sampling tick, handed over from the sampling thread
+ * to the publishing thread.
+ */
+public class SampleBatch {
+    private final long enqueuedAtNanos;
+    private final List<SensorData> readings;
+
+    public SampleBatch(List<SensorData> readings) {
+        this.enqueuedAtNanos = System.nanoTime();
+        this.readings = readings;
+    }
+
+    public long getEnqueuedAtNanos() {
+        return enqueuedAtNanos;
+    }
+
+    public List<SensorData> getReadings() {
+        return readings;
+    }
+}
@@ -0,0 +1,71 @@
+package pl.piotrserafin.weatherstation.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded ring of (timestamp, value) pairs for exactly one producer thread and one consumer
+ * thread. Unlike {@link SpscQueue} it stores primitives in preallocated arrays, so neither
+ * side allocates. The capacity is rounded up to a power of two.
+ */
+public class SampleRing {
+
+    private final long[] timestamps;
+    private final float[] values;
+    private final int mask;
+
+    // written only by the producer / consumer respectively
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public SampleRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.timestamps = new long[size];
+        this.values = new float[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Producer side. Drops the sample and returns false if the ring is full.
+     */
+    public boolean offer(long timestamp, float value) {
+        long currentTail = tail.get();
+        if (currentTail - head.get() > mask) {
+            dropped.lazySet(dropped.get() + 1);
+            return false;
+        }
+        int index = (int) currentTail & mask;
+        timestamps[index] = timestamp;
+        values[index] = value;
+        // the ordered store publishes the array writes above to the consumer
+        tail.lazySet(currentTail + 1);
+        return true;
+    }
+
+    /**
+     * Consumer side. Moves up to {@code timestamps.length} samples into the given arrays and
+     * returns how many were moved.
+     */
+    public int drainTo(long[] timestamps, float[] values) {
+        long currentHead = head.get();
+        int count = (int) Math.min(tail.get() - currentHead,
+                Math.min(timestamps.length, values.length));
+        for (int i = 0; i < count; i++) {
+            int index = (int) (currentHead + i) & mask;
+            timestamps[i] = this.timestamps[index];
+            values[i] = this.values[index];
+        }
+        head.lazySet(currentHead + count);
+        return count;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+}
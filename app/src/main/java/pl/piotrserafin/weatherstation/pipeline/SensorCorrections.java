@@ -0,0 +1,185 @@
+package pl.piotrserafin.weatherstation.pipeline;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import pl.piotrserafin.weatherstation.model.SensorData;
+
+/**
+ * Per-sensor value corrections, compiled from {@link Spec}s into flat arrays when the device
+ * config changes. A value first goes through the polynomial of its range (if any), then gain
+ * and offset, and finally the estimated self-heating is subtracted. The warm-up curve of the
+ * self-heating is a precomputed table, so a correction costs a few multiply-adds.
+ * Immutable; a new instance is compiled on every reconfiguration.
+ */
+public class SensorCorrections {
+
+    public static final int MAX_DEGREE = 3;
+    private static final int COEFFICIENTS = MAX_DEGREE + 1;
+
+    // 1 - exp(-t / tau), tabulated up to WARMUP_TAUS time constants
+    private static final int WARMUP_STEPS_PER_TAU = 16;
+    private static final int WARMUP_TAUS = 6;
+    private static final float[] WARMUP = new float[WARMUP_STEPS_PER_TAU * WARMUP_TAUS + 1];
+
+    static {
+        for (int i = 0; i < WARMUP.length; i++) {
+            WARMUP[i] = (float) (1 - Math.exp(-(double) i / WARMUP_STEPS_PER_TAU));
+        }
+    }
+
+    public static final SensorCorrections NONE =
+            compile(Collections.<String, Spec>emptyMap());
+
+    private final Map<String, Integer> indices = new HashMap<>();
+    private final float[] offsets;
+    private final float[] gains;
+    private final int[] firstSegment;
+    private final int[] segmentCount;
+    private final float[] heatingAmplitudes;
+    private final float[] heatingStepsPerMilli;
+    // all segments of all sensors, ascending lower bounds per sensor
+    private final float[] segmentFrom;
+    private final float[] coefficients;
+
+    private SensorCorrections(int sensors, int segments) {
+        offsets = new float[sensors];
+        gains = new float[sensors];
+        firstSegment = new int[sensors];
+        segmentCount = new int[sensors];
+        heatingAmplitudes = new float[sensors];
+        heatingStepsPerMilli = new float[sensors];
+        segmentFrom = new float[segments];
+        coefficients = new float[segments * COEFFICIENTS];
+    }
+
+    public static SensorCorrections compile(Map<String, Spec> specs) {
+        int segments = 0;
+        for (Spec spec : specs.values()) {
+            segments += spec.segments.size();
+        }
+        SensorCorrections corrections = new SensorCorrections(specs.size(), segments);
+        int sensor = 0;
+        int segment = 0;
+        for (Map.Entry<String, Spec> entry : specs.entrySet()) {
+            Spec spec = entry.getValue();
+            corrections.indices.put(entry.getKey(), sensor);
+            corrections.offsets[sensor] = spec.offset;
+            corrections.gains[sensor] = spec.gain;
+            corrections.firstSegment[sensor] = segment;
+            corrections.segmentCount[sensor] = spec.segments.size();
+            List<Segment> sorted = new ArrayList<>(spec.segments);
+            Collections.sort(sorted, (a, b) -> Float.compare(a.from, b.from));
+            for (Segment s : sorted) {
+                if (s.coefficients.length < 1 || s.coefficients.length > COEFFICIENTS) {
+                    throw new IllegalArgumentException("Invalid polynomial for " +
+                            entry.getKey() + ", expected 1 to " + COEFFICIENTS + " coefficients");
+                }
+                corrections.segmentFrom[segment] = s.from;
+                System.arraycopy(s.coefficients, 0, corrections.coefficients,
+                        segment * COEFFICIENTS, s.coefficients.length);
+                segment++;
+            }
+            if (spec.selfHeating != 0) {
+                if (spec.selfHeatingTimeConstantMillis <= 0) {
+                    throw new IllegalArgumentException("Invalid self-heating time constant for " +
+                            entry.getKey());
+                }
+                corrections.heatingAmplitudes[sensor] = spec.selfHeating;
+                corrections.heatingStepsPerMilli[sensor] =
+                        (float) WARMUP_STEPS_PER_TAU / spec.selfHeatingTimeConstantMillis;
+            }
+            sensor++;
+        }
+        return corrections;
+    }
+
+    /**
+     * @param uptimeMillis time since the board was powered, which drives the self-heating
+     */
+    public float correct(String sensor, float value, long uptimeMillis) {
+        Integer index = indices.get(sensor);
+        if (index == null) {
+            return value;
+        }
+        int i = index;
+        int count = segmentCount[i];
+        if (count > 0) {
+            int s = firstSegment[i];
+            int last = s + count - 1;
+            // values below the first range use its polynomial as well
+            while (s < last && value >= segmentFrom[s + 1]) {
+                s++;
+            }
+            int c = s * COEFFICIENTS;
+            value = ((coefficients[c + 3] * value + coefficients[c + 2]) * value +
+                    coefficients[c + 1]) * value + coefficients[c];
+        }
+        value = gains[i] * value + offsets[i];
+        if (heatingAmplitudes[i] != 0) {
+            value -= heatingAmplitudes[i] * warmup(uptimeMillis * heatingStepsPerMilli[i]);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the given reading if there is nothing to correct, a corrected copy otherwise.
+     */
+    public SensorData correct(SensorData data, long uptimeMillis) {
+        if (!indices.containsKey(data.getSensorName())) {
+            return data;
+        }
+        return new SensorData(data.getTimestamp(), data.getSensorName(),
+                correct(data.getSensorName(), data.getValue(), uptimeMillis));
+    }
+
+    private static float warmup(float steps) {
+        int step = (int) steps;
+        if (step >= WARMUP.length - 1) {
+            return WARMUP[WARMUP.length - 1];
+        }
+        float fraction = steps - step;
+        return WARMUP[step] + (WARMUP[step + 1] - WARMUP[step]) * fraction;
+    }
+
+    public static class Spec {
+        public float offset;
+        public float gain = 1;
+        public List<Segment> segments = Collections.emptyList();
+        // steady state reading error caused by board heating, reached after a few time constants
+        public float selfHeating;
+        public long selfHeatingTimeConstantMillis;
+
+        @Override
+        public String toString() {
+            return "Spec{" +
+                    "offset=" + offset +
+                    ", gain=" + gain +
+                    ", segments=" + segments +
+                    ", selfHeating=" + selfHeating +
+                    ", selfHeatingTimeConstantMillis=" + selfHeatingTimeConstantMillis +
+                    '}';
+        }
+    }
+
+    /**
+     * Polynomial applied to values from {@code from} up to the next segment, coefficients in
+     * ascending order of power.
+     */
+    public static class Segment {
+        public float from;
+        public float[] coefficients;
+
+        @Override
+        public String toString() {
+            return "Segment{" +
+                    "from=" + from +
+                    ", coefficients=" + Arrays.toString(coefficients) +
+                    '}';
+        }
+    }
+}
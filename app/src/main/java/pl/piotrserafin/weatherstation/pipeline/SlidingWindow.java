@@ -0,0 +1,140 @@
+package pl.piotrserafin.weatherstation.pipeline;
+
+/**
+ * Time based sliding window over the most recent samples of one sensor. Samples live in
+ * preallocated primitive rings; min and max are tracked with monotonic deques, so every
+ * update is amortized O(1).
+ */
+public class SlidingWindow {
+
+    private final long[] timestamps;
+    private final float[] values;
+    private final int capacity;
+
+    // sample ring, positions grow forever and are reduced modulo capacity
+    private long first;
+    private long end;
+
+    // monotonic deques of sample positions
+    private final long[] minDeque;
+    private final long[] maxDeque;
+    private long minHead, minTail;
+    private long maxHead, maxTail;
+
+    private double sum;
+    private double sumOfSquares;
+
+    private long lengthMillis;
+
+    public SlidingWindow(int capacity, long lengthMillis) {
+        this.capacity = capacity;
+        this.timestamps = new long[capacity];
+        this.values = new float[capacity];
+        this.minDeque = new long[capacity];
+        this.maxDeque = new long[capacity];
+        this.lengthMillis = lengthMillis;
+    }
+
+    public void setLengthMillis(long lengthMillis) {
+        this.lengthMillis = lengthMillis;
+    }
+
+    public void add(long timestamp, float value) {
+        if (Float.isNaN(value)) {
+            return;
+        }
+        evictOlderThan(timestamp - lengthMillis);
+        if (end - first == capacity) {
+            evictFirst();
+        }
+        long position = end++;
+        int index = (int) (position % capacity);
+        timestamps[index] = timestamp;
+        values[index] = value;
+        sum += value;
+        sumOfSquares += (double) value * value;
+
+        while (minTail > minHead && valueAt(minDeque[slot(minTail - 1)]) >= value) {
+            minTail--;
+        }
+        minDeque[slot(minTail++)] = position;
+        while (maxTail > maxHead && valueAt(maxDeque[slot(maxTail - 1)]) <= value) {
+            maxTail--;
+        }
+        maxDeque[slot(maxTail++)] = position;
+    }
+
+    public void evictOlderThan(long timestamp) {
+        while (first < end && timestamps[slot(first)] < timestamp) {
+            evictFirst();
+        }
+    }
+
+    private void evictFirst() {
+        float value = values[slot(first)];
+        sum -= value;
+        sumOfSquares -= (double) value * value;
+        if (minHead < minTail && minDeque[slot(minHead)] == first) {
+            minHead++;
+        }
+        if (maxHead < maxTail && maxDeque[slot(maxHead)] == first) {
+            maxHead++;
+        }
+        first++;
+        if (first == end) {
+            // keep the running sums from drifting
+            sum = 0;
+            sumOfSquares = 0;
+        }
+    }
+
+    private int slot(long position) {
+        return (int) (position % capacity);
+    }
+
+    private float valueAt(long position) {
+        return values[slot(position)];
+    }
+
+    public int getCount() {
+        return (int) (end - first);
+    }
+
+    public float getMin() {
+        return getCount() == 0 ? Float.NaN : valueAt(minDeque[slot(minHead)]);
+    }
+
+    public float getMax() {
+        return getCount() == 0 ? Float.NaN : valueAt(maxDeque[slot(maxHead)]);
+    }
+
+    public float getMean() {
+        int count = getCount();
+        return count == 0 ? Float.NaN : (float) (sum / count);
+    }
+
+    public float getStdDev() {
+        int count = getCount();
+        if (count < 2) {
+            return 0f;
+        }
+        double variance = (sumOfSquares - sum * sum / count) / (count - 1);
+        return variance <= 0 ? 0f : (float) Math.sqrt(variance);
+    }
+
+    public float getLast() {
+        return getCount() == 0 ? Float.NaN : valueAt(end - 1);
+    }
+
+    public long getFirstTimestamp() {
+        return getCount() == 0 ? 0 : timestamps[slot(first)];
+    }
+
+    public long getLastTimestamp() {
+        return getCount() == 0 ? 0 : timestamps[slot(end - 1)];
+    }
+
+    public float getFirst() {
+        return getCount() == 0 ? Float.NaN : valueAt(first);
+    }
+}
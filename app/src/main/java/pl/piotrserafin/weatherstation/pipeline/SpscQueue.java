@@ -0,0 +1,66 @@
+package pl.piotrserafin.weatherstation.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread.
+ * The capacity is rounded up to a power of two.
+ */
+public class SpscQueue<T> {
+
+    private final AtomicReferenceArray<T> buffer;
+    private final int mask;
+
+    // written only by the producer / consumer respectively
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    public SpscQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.buffer = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Producer side. Returns false without blocking if the queue is full.
+     */
+    public boolean offer(T element) {
+        long currentTail = tail.get();
+        if (currentTail - head.get() > mask) {
+            return false;
+        }
+        buffer.lazySet((int) currentTail & mask, element);
+        tail.lazySet(currentTail + 1);
+        return true;
+    }
+
+    /**
+     * Consumer side. Returns null if the queue is empty.
+     */
+    public T poll() {
+        long currentHead = head.get();
+        if (currentHead >= tail.get()) {
+            return null;
+        }
+        int index = (int) currentHead & mask;
+        T element = buffer.get(index);
+        buffer.lazySet(index, null);
+        head.lazySet(currentHead + 1);
+        return element;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,243 @@
+package pl.piotrserafin.weatherstation.pipeline;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Mergeable quantile sketch (merging t-digest). Centroids and the insert buffer are
+ * preallocated primitive arrays, so memory stays bounded by the compression no matter how
+ * many samples are added, and adding a sample never allocates.
+ *
+ * <p>Serialized form, big endian: version byte, compression (float), min (float),
+ * max (float), centroid count (short), then per centroid its mean (float) and
+ * weight (int).
+ */
+public class TDigest {
+
+    public static final int DEFAULT_COMPRESSION = 50;
+
+    private static final byte SERIAL_VERSION = 1;
+
+    private final int compression;
+
+    private final float[] means;
+    private final double[] weights;
+    private int centroids;
+    private double totalWeight;
+
+    private final float[] buffer;
+    private int buffered;
+
+    // scratch arrays for merging
+    private final float[] mergedMeans;
+    private final double[] mergedWeights;
+
+    private float min = Float.POSITIVE_INFINITY;
+    private float max = Float.NEGATIVE_INFINITY;
+
+    public TDigest() {
+        this(DEFAULT_COMPRESSION);
+    }
+
+    public TDigest(int compression) {
+        this.compression = compression;
+        int capacity = 3 * compression;
+        this.means = new float[capacity];
+        this.weights = new double[capacity];
+        this.mergedMeans = new float[capacity];
+        this.mergedWeights = new double[capacity];
+        this.buffer = new float[5 * compression];
+    }
+
+    public void add(float value) {
+        if (Float.isNaN(value)) {
+            return;
+        }
+        if (buffered == buffer.length) {
+            flushBuffer();
+        }
+        buffer[buffered++] = value;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    public void add(TDigest other) {
+        other.flushBuffer();
+        flushBuffer();
+        if (other.centroids == 0) {
+            return;
+        }
+        merge(other.means, other.weights, other.centroids, other.totalWeight);
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public void reset() {
+        centroids = 0;
+        totalWeight = 0;
+        buffered = 0;
+        min = Float.POSITIVE_INFINITY;
+        max = Float.NEGATIVE_INFINITY;
+    }
+
+    public long size() {
+        return (long) (totalWeight + buffered);
+    }
+
+    /**
+     * Estimated value at quantile {@code q} in [0, 1], or NaN if the digest is empty.
+     */
+    public float quantile(double q) {
+        flushBuffer();
+        if (centroids == 0) {
+            return Float.NaN;
+        }
+        if (q <= 0) {
+            return min;
+        }
+        if (q >= 1) {
+            return max;
+        }
+        double index = q * totalWeight;
+        if (index < weights[0] / 2) {
+            return (float) (min + (means[0] - min) * index / (weights[0] / 2));
+        }
+        double cumulative = 0;
+        for (int i = 0; i < centroids - 1; i++) {
+            double left = cumulative + weights[i] / 2;
+            double right = cumulative + weights[i] + weights[i + 1] / 2;
+            if (index < right) {
+                double fraction = (index - left) / (right - left);
+                return (float) (means[i] + (means[i + 1] - means[i]) * fraction);
+            }
+            cumulative += weights[i];
+        }
+        int last = centroids - 1;
+        double left = totalWeight - weights[last] / 2;
+        double fraction = Math.min(1, (index - left) / (weights[last] / 2));
+        return (float) (means[last] + (max - means[last]) * fraction);
+    }
+
+    private void flushBuffer() {
+        if (buffered == 0) {
+            return;
+        }
+        Arrays.sort(buffer, 0, buffered);
+        int count = buffered;
+        buffered = 0;
+        merge(buffer, null, count, count);
+    }
+
+    /**
+     * Merges sorted centroids (weight 1 each if {@code sourceWeights} is null) into this
+     * digest, combining neighbours while they stay within the size limit for their quantile.
+     */
+    private void merge(float[] sourceMeans, double[] sourceWeights, int sourceCount,
+                       double sourceTotal) {
+        double total = totalWeight + sourceTotal;
+        int i = 0;
+        int j = 0;
+        int merged = 0;
+        double weightSoFar = 0;
+        double quantileLimit = quantileLimit(0);
+        float currentMean = 0;
+        double currentWeight = 0;
+
+        while (i < centroids || j < sourceCount) {
+            float nextMean;
+            double nextWeight;
+            if (j >= sourceCount || (i < centroids && means[i] <= sourceMeans[j])) {
+                nextMean = means[i];
+                nextWeight = weights[i];
+                i++;
+            } else {
+                nextMean = sourceMeans[j];
+                nextWeight = sourceWeights == null ? 1 : sourceWeights[j];
+                j++;
+            }
+            if (currentWeight == 0) {
+                currentMean = nextMean;
+                currentWeight = nextWeight;
+                continue;
+            }
+            double proposed = currentWeight + nextWeight;
+            // the last free slot absorbs everything that is left
+            if ((weightSoFar + proposed) / total <= quantileLimit ||
+                    merged == mergedMeans.length - 1) {
+                currentMean += (nextMean - currentMean) * nextWeight / proposed;
+                currentWeight = proposed;
+            } else {
+                mergedMeans[merged] = currentMean;
+                mergedWeights[merged] = currentWeight;
+                merged++;
+                weightSoFar += currentWeight;
+                quantileLimit = quantileLimit(weightSoFar / total);
+                currentMean = nextMean;
+                currentWeight = nextWeight;
+            }
+        }
+        if (currentWeight > 0) {
+            mergedMeans[merged] = currentMean;
+            mergedWeights[merged] = currentWeight;
+            merged++;
+        }
+        System.arraycopy(mergedMeans, 0, means, 0, merged);
+        System.arraycopy(mergedWeights, 0, weights, 0, merged);
+        centroids = merged;
+        totalWeight = total;
+    }
+
+    /**
+     * Highest quantile a centroid starting at {@code q} may reach, using the k1 scale
+     * function k(q) = compression / (2 pi) * asin(2q - 1). Evaluated once per centroid,
+     * not per sample.
+     */
+    private double quantileLimit(double q) {
+        double k = compression / (2 * Math.PI) * Math.asin(2 * q - 1) + 1;
+        double angle = k * 2 * Math.PI / compression;
+        if (angle >= Math.PI / 2) {
+            return 1;
+        }
+        return (Math.sin(angle) + 1) / 2;
+    }
+
+    public byte[] toBytes() {
+        flushBuffer();
+        ByteBuffer out = ByteBuffer.allocate(15 + centroids * 8);
+        out.put(SERIAL_VERSION);
+        out.putFloat(compression);
+        out.putFloat(min);
+        out.putFloat(max);
+        out.putShort((short) centroids);
+        for (int i = 0; i < centroids; i++) {
+            out.putFloat(means[i]);
+            out.putInt((int) Math.round(weights[i]));
+        }
+        return out.array();
+    }
+
+    public static TDigest fromBytes(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        if (in.get() != SERIAL_VERSION) {
+            throw new IllegalArgumentException("Unsupported t-digest version");
+        }
+        TDigest digest = new TDigest((int) in.getFloat());
+        digest.min = in.getFloat();
+        digest.max = in.getFloat();
+        int count = in.getShort();
+        if (count > digest.means.length) {
+            throw new IllegalArgumentException("Too many centroids: " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            digest.means[i] = in.getFloat();
+            digest.weights[i] = in.getInt();
+            digest.totalWeight += digest.weights[i];
+        }
+        digest.centroids = count;
+        return digest;
+    }
+}
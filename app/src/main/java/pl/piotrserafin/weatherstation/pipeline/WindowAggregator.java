@@ -0,0 +1,79 @@
+package pl.piotrserafin.weatherstation.pipeline;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import pl.piotrserafin.weatherstation.model.SensorData;
+
+/**
+ * Keeps a tumbling window with a quantile sketch and a sliding window per sensor. Not thread
+ * safe, owned by the publishing thread.
+ */
+public class WindowAggregator {
+
+    private static final int SLIDING_WINDOW_CAPACITY = 3600;
+
+    private final Map<String, SensorWindows> windows = new HashMap<>();
+    private long slidingWindowMillis;
+
+    public WindowAggregator(long slidingWindowMillis) {
+        this.slidingWindowMillis = slidingWindowMillis;
+    }
+
+    public void setSlidingWindowMillis(long slidingWindowMillis) {
+        this.slidingWindowMillis = slidingWindowMillis;
+        for (SensorWindows sensorWindows : windows.values()) {
+            sensorWindows.sliding.setLengthMillis(slidingWindowMillis);
+        }
+    }
+
+    public void add(List<SensorData> readings) {
+        for (SensorData data : readings) {
+            add(data);
+        }
+    }
+
+    public void add(SensorData data) {
+        SensorWindows sensorWindows = windows.get(data.getSensorName());
+        if (sensorWindows == null) {
+            sensorWindows = new SensorWindows(data.getTimestamp());
+            windows.put(data.getSensorName(), sensorWindows);
+        }
+        sensorWindows.tumbling.add(data.getValue());
+        sensorWindows.digest.add(data.getValue());
+        sensorWindows.sliding.add(data.getTimestamp(), data.getValue());
+    }
+
+    /**
+     * Closes the current tumbling window of every sensor which received samples and
+     * starts the next one at {@code now}. Each summary also carries the sliding window
+     * ending at {@code now}.
+     */
+    public List<WindowSummary> closeTumblingWindows(long now) {
+        List<WindowSummary> summaries = new ArrayList<>();
+        for (Map.Entry<String, SensorWindows> entry : windows.entrySet()) {
+            SensorWindows sensorWindows = entry.getValue();
+            if (sensorWindows.tumbling.getCount() > 0) {
+                sensorWindows.sliding.evictOlderThan(now - slidingWindowMillis);
+                summaries.add(new WindowSummary(entry.getKey(), now, sensorWindows.tumbling,
+                        sensorWindows.digest, sensorWindows.sliding));
+            }
+            sensorWindows.tumbling.reset(now);
+            sensorWindows.digest.reset();
+        }
+        return summaries;
+    }
+
+    private class SensorWindows {
+        final RunningStats tumbling = new RunningStats();
+        final TDigest digest = new TDigest();
+        final SlidingWindow sliding = new SlidingWindow(SLIDING_WINDOW_CAPACITY,
+                slidingWindowMillis);
+
+        SensorWindows(long windowStart) {
+            tumbling.reset(windowStart);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package pl.piotrserafin.weatherstation.pipeline;
+
+/**
+ * Statistics of one sensor over one closed tumbling window, and over the sliding window
+ * ending at the same time.
+ */
+public class WindowSummary {
+    private final String sensorName;
+    private final long windowStart;
+    private final long windowEnd;
+    private final int count;
+    private final float min;
+    private final float max;
+    private final float mean;
+    private final float stdDev;
+    private final float last;
+    private final float p5;
+    private final float p50;
+    private final float p95;
+    private final byte[] digest;
+    private final int slidingCount;
+    private final long slidingSpanMillis;
+    private final float slidingMin;
+    private final float slidingMax;
+    private final float slidingMean;
+    private final float slidingStdDev;
+    private final float slidingChange;
+
+    public WindowSummary(String sensorName, long windowEnd, RunningStats stats, TDigest digest,
+                         SlidingWindow sliding) {
+        this.sensorName = sensorName;
+        this.windowStart = stats.getWindowStart();
+        this.windowEnd = windowEnd;
+        this.count = stats.getCount();
+        this.min = stats.getMin();
+        this.max = stats.getMax();
+        this.mean = stats.getMean();
+        this.stdDev = stats.getStdDev();
+        this.last = stats.getLast();
+        this.p5 = digest.quantile(0.05);
+        this.p50 = digest.quantile(0.5);
+        this.p95 = digest.quantile(0.95);
+        this.digest = digest.toBytes();
+        this.slidingCount = sliding.getCount();
+        this.slidingSpanMillis = sliding.getLastTimestamp() - sliding.getFirstTimestamp();
+        this.slidingMin = sliding.getMin();
+        this.slidingMax = sliding.getMax();
+        this.slidingMean = sliding.getMean();
+        this.slidingStdDev = sliding.getStdDev();
+        this.slidingChange = sliding.getLast() - sliding.getFirst();
+    }
+
+    public String getSensorName() {
+        return sensorName;
+    }
+
+    public long getWindowStart() {
+        return windowStart;
+    }
+
+    public long getWindowEnd() {
+        return windowEnd;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public float getMin() {
+        return min;
+    }
+
+    public float getMax() {
+        return max;
+    }
+
+    public float getMean() {
+        return mean;
+    }
+
+    public float getStdDev() {
+        return stdDev;
+    }
+
+    public float getLast() {
+        return last;
+    }
+
+    public float getP5() {
+        return p5;
+    }
+
+    public float getP50() {
+        return p50;
+    }
+
+    public float getP95() {
+        return p95;
+    }
+
+    /**
+     * Serialized {@link TDigest} of the window, mergeable with digests of other windows
+     * and devices.
+     */
+    public byte[] getDigest() {
+        return digest;
+    }
+
+    public int getSlidingCount() {
+        return slidingCount;
+    }
+
+    /**
+     * Time between the oldest and the newest sample in the sliding window.
+     */
+    public long getSlidingSpanMillis() {
+        return slidingSpanMillis;
+    }
+
+    public float getSlidingMin() {
+        return slidingMin;
+    }
+
+    public float getSlidingMax() {
+        return slidingMax;
+    }
+
+    public float getSlidingMean() {
+        return slidingMean;
+    }
+
+    public float getSlidingStdDev() {
+        return slidingStdDev;
+    }
+
+    /**
+     * Newest minus oldest value in the sliding window.
+     */
+    public float getSlidingChange() {
+        return slidingChange;
+    }
+
+    @Override
+    public String toString() {
+        return sensorName + " [" + windowStart + ".." + windowEnd + "] n=" + count +
+                " min=" + min + " max=" + max + " mean=" + mean + " sd=" + stdDev +
+                " last=" + last + " p5=" + p5 + " p50=" + p50 + " p95=" + p95 +
+                " sliding n=" + slidingCount + " span=" + slidingSpanMillis +
+                " min=" + slidingMin + " max=" + slidingMax + " mean=" + slidingMean +
+                " sd=" + slidingStdDev + " change=" + slidingChange;
+    }
+}
@@ -0,0 +1,44 @@
+package pl.piotrserafin.weatherstation.sensor;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import pl.piotrserafin.weatherstation.iotcore.MessagePayload;
+import pl.piotrserafin.weatherstation.model.SensorData;
+
+/**
+ * Non-blocking counterpart of {@link SensorCollector}. Collection is started by
+ * {@link #collectRecentReadingsAsync()} and completes on the collector's own thread, so slow
+ * conversions of several collectors overlap instead of serializing on the hub thread.
+ */
+public interface AsyncSensorCollector {
+    boolean activate();
+    void setEnabled(String sensor, boolean enabled);
+    boolean isEnabled(String sensor);
+    List<String> getAvailableSensors();
+    List<String> getEnabledSensors();
+    CompletableFuture<List<SensorData>> collectRecentReadingsAsync();
+    void closeQuietly();
+
+    /**
+     * Applies collector specific settings of a new device config.
+     */
+    default void configure(MessagePayload.DeviceConfig config) {
+    }
+
+    /**
+     * Shortest sampling interval which still yields a fresh conversion, or 0 if unbounded.
+     */
+    default long getMinSamplingIntervalMillis() {
+        return 0;
+    }
+
+    /**
+     * Sensors reporting events as they were detected rather than samples. Events collected
+     * along with other sensors are delivered whether or not their own sensor was due.
+     */
+    default List<String> getEventSensors() {
+        return Collections.emptyList();
+    }
+}
@@ -1,162 +1,450 @@
 package pl.piotrserafin.weatherstation.sensor;
 
-import com.google.android.things.contrib.driver.bmx280.Bmx280;
-
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import pl.piotrserafin.weatherstation.iotcore.MessagePayload;
 import pl.piotrserafin.weatherstation.model.SensorData;
 import timber.log.Timber;
 
-public class Bme280Collector implements SensorCollector {
+/**
+ * BME280 collector. In normal mode the sensor converts continuously and every collection
+ * just reads the latest result. In forced mode each collection triggers one conversion and
+ * reads it once the datasheet measurement time has passed; the wait is scheduled on the
+ * collector's own thread instead of blocking the caller, and the sensor sleeps in between.
+ * Oversampling, IIR filter and standby time come from a {@link Bme280Profile}; without one
+ * every enabled channel is sampled once in normal mode with the filter off.
+ * <p>
+ * With high-rate pressure configured, pressure is additionally sampled on a
+ * {@link HighRateAcquisition} thread and CIC decimated; each collection then reports the mean
+ * of the decimated values since the previous one, plus the peak events as "pressure-peak".
+ */
+public class Bme280Collector implements AsyncSensorCollector {
 
     private static final String SENSOR_TEMPERATURE = "temperature";
     private static final String SENSOR_HUMIDITY = "humidity";
     private static final String SENSOR_PRESSURE = "pressure";
+    private static final String SENSOR_PRESSURE_PEAK = "pressure-peak";
+
+    private static final int DRAIN_CHUNK = 64;
+
+    public static final String MODE_NORMAL = "normal";
+    public static final String MODE_FORCED = "forced";
 
     private boolean isTemperatureEnabled;
     private boolean isPressureEnabled;
     private boolean isHumidityEnabled;
+    private boolean isPressurePeakEnabled;
 
     private boolean isHumidityAvailable;
 
     private String i2cBus;
-    private Bmx280 bme280;
+    private final int address;
+    private final String sensorSuffix;
+    private final String temperatureName;
+    private final String pressureName;
+    private final String humidityName;
+    private final String pressurePeakName;
+    private Bme280Driver bme280;
+    private Bme280Profile profile;
+    // set by "bme280-mode" and takes precedence over the mode of the profile
+    private Boolean forcedModeOverride;
+    private ScheduledExecutorService executor;
+
+    private HighRateAcquisition.Settings highRateSettings;
+    private HighRateAcquisition highRate;
+
+    // reused by every read, indexed by Bme280Driver.INDEX_*
+    private final float[] readings = new float[3];
+    private final float[] highRateReadings = new float[3];
+    private final long[] drainTimestamps = new long[DRAIN_CHUNK];
+    private final float[] drainValues = new float[DRAIN_CHUNK];
 
     public Bme280Collector(String i2cBus) {
+        this(i2cBus, Bme280Driver.DEFAULT_I2C_ADDRESS, "");
+    }
+
+    /**
+     * @param sensorSuffix appended to all sensor names, so several devices can be told apart
+     */
+    public Bme280Collector(String i2cBus, int address, String sensorSuffix) {
         this.i2cBus = i2cBus;
+        this.address = address;
+        this.sensorSuffix = sensorSuffix;
+        this.temperatureName = SENSOR_TEMPERATURE + sensorSuffix;
+        this.pressureName = SENSOR_PRESSURE + sensorSuffix;
+        this.humidityName = SENSOR_HUMIDITY + sensorSuffix;
+        this.pressurePeakName = SENSOR_PRESSURE_PEAK + sensorSuffix;
         this.isTemperatureEnabled = true;
         this.isPressureEnabled = true;
         this.isHumidityEnabled = true;
+        this.isPressurePeakEnabled = true;
+    }
+
+    public String getPressureSensorName() {
+        return pressureName;
     }
 
     @Override
-    public boolean activate() {
+    public synchronized boolean activate() {
         if (bme280 != null) {
             return true;
         }
         try {
-            bme280 = new Bmx280(i2cBus);
+            bme280 = new Bme280Driver(i2cBus, address);
             isHumidityAvailable = bme280.hasHumiditySensor();
-            setEnabled(SENSOR_TEMPERATURE, isTemperatureEnabled);
-            setEnabled(SENSOR_PRESSURE, isPressureEnabled);
-            setEnabled(SENSOR_HUMIDITY, isHumidityAvailable && isHumidityEnabled);
-            bme280.setMode(Bmx280.MODE_NORMAL);
-            Timber.d("BME280 initialized");
+            applySettings();
+            updateHighRate();
+            executor = Executors.newSingleThreadScheduledExecutor(
+                    r -> new Thread(r, getName("Bme280Collector")));
+            Timber.d("BME280 initialized at %s:0x%x", i2cBus, address);
             return true;
         } catch (Throwable t) {
-            Timber.e(t);
+            // retried with backoff by the hub, a stack trace per attempt would only add noise
+            Timber.w("Cannot open BME280 at %s:0x%x: %s", i2cBus, address, t);
+            // a half opened device would make the next attempt return early without an executor
+            closeQuietly();
         }
         return false;
     }
 
     @Override
-    public void setEnabled(String sensor, boolean enabled) {
-        try {
-            int overSampling = enabled ? Bmx280.OVERSAMPLING_1X : Bmx280.OVERSAMPLING_SKIPPED;
-            switch (sensor) {
-                case SENSOR_TEMPERATURE:
-                    if (bme280 != null) {
-                        bme280.setTemperatureOversampling(overSampling);
-                    }
-                    isTemperatureEnabled = enabled;
-                    break;
-                case SENSOR_PRESSURE:
-                    if (bme280 != null) {
-                        bme280.setPressureOversampling(overSampling);
-                    }
-                    isPressureEnabled = enabled;
-                    break;
-                case SENSOR_HUMIDITY:
-                    if (enabled && !isHumidityAvailable) {
-                        Timber.i("Humidity sensor not available. Ignoring request to enable it");
-                    } else {
-                        if (bme280 != null && isHumidityAvailable) {
-                            bme280.setHumidityOversampling(overSampling);
-                        }
-                        isHumidityEnabled = enabled;
-                    }
-                    break;
-                default:
-                    Timber.w("Unknown sensor " + sensor + ". Ignoring request");
+    public synchronized void configure(MessagePayload.DeviceConfig config) {
+        profile = config.bme280Profile;
+        forcedModeOverride = config.bme280Mode == null ?
+                null : MODE_FORCED.equals(config.bme280Mode);
+        highRateSettings = config.highRatePressure;
+        applySettings();
+        updateHighRate();
+    }
+
+    public synchronized void setForcedMode(boolean forcedMode) {
+        forcedModeOverride = forcedMode;
+        applySettings();
+    }
+
+    public synchronized void setProfile(Bme280Profile profile) {
+        this.profile = profile;
+        applySettings();
+    }
+
+    @Override
+    public synchronized void setEnabled(String sensor, boolean enabled) {
+        String baseName = toBaseName(sensor);
+        if (baseName == null) {
+            Timber.w("Unknown sensor " + sensor + ". Ignoring request");
+            return;
+        }
+        switch (baseName) {
+            case SENSOR_TEMPERATURE:
+                isTemperatureEnabled = enabled;
+                break;
+            case SENSOR_PRESSURE:
+                isPressureEnabled = enabled;
+                break;
+            case SENSOR_PRESSURE_PEAK:
+                isPressurePeakEnabled = enabled;
+                break;
+            case SENSOR_HUMIDITY:
+                if (enabled && !isHumidityAvailable) {
+                    Timber.i("Humidity sensor not available. Ignoring request to enable it");
+                } else {
+                    isHumidityEnabled = enabled;
+                }
+                break;
+            default:
+                Timber.w("Unknown sensor " + sensor + ". Ignoring request");
+                return;
+        }
+        applySettings();
+        updateHighRate();
+    }
+
+    @Override
+    public synchronized long getMinSamplingIntervalMillis() {
+        if (bme280 == null) {
+            return 0;
+        }
+        return (bme280.getSamplePeriodMicros() + 999) / 1000;
+    }
+
+    /**
+     * Strips the sensor suffix, or returns null if the name does not belong to this device.
+     */
+    private String toBaseName(String sensor) {
+        if (!sensor.endsWith(sensorSuffix)) {
+            return null;
+        }
+        return sensor.substring(0, sensor.length() - sensorSuffix.length());
+    }
+
+    private String getName(String prefix) {
+        return prefix + "-" + i2cBus + "-" + Integer.toHexString(address);
+    }
+
+    private Bme280Profile getEffectiveProfile() {
+        if (profile == null && highRateSettings != null) {
+            return Bme280Profile.HIGH_RATE;
+        }
+        return profile;
+    }
+
+    private boolean isForcedMode() {
+        if (highRateSettings != null) {
+            // high-rate sampling reads back to back conversions
+            return false;
+        }
+        if (forcedModeOverride != null) {
+            return forcedModeOverride;
+        }
+        return profile != null && profile.forcedMode;
+    }
+
+    private boolean isHumidityMeasured() {
+        Bme280Profile profile = getEffectiveProfile();
+        return profile == null || profile.humidityOversampling != Bme280Driver.OVERSAMPLING_SKIPPED;
+    }
+
+    private void updateHighRate() {
+        boolean wanted = bme280 != null && highRateSettings != null && isPressureEnabled;
+        if (highRate != null && (!wanted || !highRate.getSettings().equals(highRateSettings))) {
+            highRate.stop();
+            highRate = null;
+        }
+        if (wanted && highRate == null) {
+            long maxRateHz = 1000000L / bme280.getSamplePeriodMicros();
+            if (highRateSettings.rateHz > maxRateHz) {
+                Timber.w("Sampling pressure at %d Hz, but the sensor converts at %d Hz",
+                        highRateSettings.rateHz, maxRateHz);
             }
+            highRate = new HighRateAcquisition(getName("Bme280HighRate"), highRateSettings,
+                    this::readHighRatePressure);
+            highRate.start();
+        }
+    }
+
+    private synchronized float readHighRatePressure() throws IOException {
+        if (bme280 == null) {
+            return Float.NaN;
+        }
+        bme280.readAll(highRateReadings);
+        return highRateReadings[Bme280Driver.INDEX_PRESSURE];
+    }
+
+    private void applySettings() {
+        if (bme280 == null) {
+            return;
+        }
+        Bme280Profile profile = getEffectiveProfile();
+        // pressure and humidity compensation need the temperature as well
+        boolean measureTemperature = isTemperatureEnabled || isPressureEnabled ||
+                isBaseEnabled(SENSOR_HUMIDITY);
+        int temperature = measureTemperature ? (profile != null ?
+                profile.temperatureOversampling : Bme280Driver.OVERSAMPLING_1X) :
+                Bme280Driver.OVERSAMPLING_SKIPPED;
+        int pressure = isPressureEnabled ? (profile != null ?
+                profile.pressureOversampling : Bme280Driver.OVERSAMPLING_1X) :
+                Bme280Driver.OVERSAMPLING_SKIPPED;
+        int humidity = isBaseEnabled(SENSOR_HUMIDITY) ? (profile != null ?
+                profile.humidityOversampling : Bme280Driver.OVERSAMPLING_1X) :
+                Bme280Driver.OVERSAMPLING_SKIPPED;
+        try {
+            bme280.applySettings(temperature, pressure, humidity,
+                    profile != null ? profile.filter : Bme280Driver.FILTER_OFF,
+                    profile != null ? profile.standby : Bme280Driver.STANDBY_0_5_MS,
+                    isForcedMode() ? Bme280Driver.MODE_SLEEP : Bme280Driver.MODE_NORMAL);
         } catch (IOException e) {
             Timber.e(e);
         }
     }
 
     @Override
-    public boolean isEnabled(String sensor) {
-        switch (sensor) {
+    public synchronized boolean isEnabled(String sensor) {
+        String baseName = toBaseName(sensor);
+        if (baseName == null) {
+            Timber.w("Unknown sensor " + sensor + ". Ignoring request");
+            return false;
+        }
+        return isBaseEnabled(baseName);
+    }
+
+    private boolean isBaseEnabled(String baseName) {
+        switch (baseName) {
             case SENSOR_TEMPERATURE:
                 return isTemperatureEnabled;
             case SENSOR_PRESSURE:
                 return isPressureEnabled;
             case SENSOR_HUMIDITY:
-                return isHumidityAvailable && isHumidityEnabled;
+                return isHumidityAvailable && isHumidityEnabled && isHumidityMeasured();
+            case SENSOR_PRESSURE_PEAK:
+                return highRateSettings != null && isPressurePeakEnabled;
             default:
-                Timber.w("Unknown sensor " + sensor + ". Ignoring request");
+                Timber.w("Unknown sensor " + baseName + ". Ignoring request");
         }
         return false;
     }
 
     @Override
-    public List<String> getAvailableSensors() {
+    public synchronized List<String> getAvailableSensors() {
         List<String> sensors = new ArrayList<>();
-        sensors.add(SENSOR_TEMPERATURE);
-        sensors.add(SENSOR_PRESSURE);
+        sensors.add(temperatureName);
+        sensors.add(pressureName);
         if (isHumidityAvailable) {
-            sensors.add(SENSOR_HUMIDITY);
+            sensors.add(humidityName);
+        }
+        if (highRateSettings != null) {
+            sensors.add(pressurePeakName);
         }
         return sensors;
     }
 
     @Override
-    public List<String> getEnabledSensors() {
+    public synchronized List<String> getEventSensors() {
+        // peaks are drained from the ring on every collection, they cannot wait to be due
+        return highRateSettings != null ?
+                Collections.singletonList(pressurePeakName) : Collections.emptyList();
+    }
+
+    @Override
+    public synchronized List<String> getEnabledSensors() {
         List<String> sensors = new ArrayList<>();
-        if (isEnabled(SENSOR_TEMPERATURE)) {
-            sensors.add(SENSOR_TEMPERATURE);
+        if (isBaseEnabled(SENSOR_TEMPERATURE)) {
+            sensors.add(temperatureName);
+        }
+        if (isBaseEnabled(SENSOR_PRESSURE)) {
+            sensors.add(pressureName);
         }
-        if (isEnabled(SENSOR_PRESSURE)) {
-            sensors.add(SENSOR_PRESSURE);
+        if (isBaseEnabled(SENSOR_HUMIDITY)) {
+            sensors.add(humidityName);
         }
-        if (isEnabled(SENSOR_HUMIDITY)) {
-            sensors.add(SENSOR_HUMIDITY);
+        if (isBaseEnabled(SENSOR_PRESSURE_PEAK)) {
+            sensors.add(pressurePeakName);
         }
         return sensors;
     }
 
     @Override
-    public void collectRecentReadings(List<SensorData> output) {
+    public synchronized CompletableFuture<List<SensorData>> collectRecentReadingsAsync() {
+        CompletableFuture<List<SensorData>> result = new CompletableFuture<>();
         if (bme280 == null) {
-            return;
+            result.complete(new ArrayList<>());
+            return result;
         }
+        ScheduledExecutorService scheduler = executor;
+        if (!isForcedMode()) {
+            scheduler.execute(() -> completeWithReadings(result));
+            return result;
+        }
+        scheduler.execute(() -> {
+            int waitMicros;
+            synchronized (this) {
+                if (bme280 == null) {
+                    result.complete(new ArrayList<>());
+                    return;
+                }
+                try {
+                    bme280.triggerForcedMeasurement();
+                    waitMicros = bme280.getMeasurementTimeMicros();
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                    return;
+                }
+            }
+            scheduler.schedule(() -> completeWithReadings(result),
+                    waitMicros, TimeUnit.MICROSECONDS);
+        });
+        return result;
+    }
+
+    private void completeWithReadings(CompletableFuture<List<SensorData>> result) {
+        List<SensorData> output = new ArrayList<>();
         try {
-            if (isEnabled(SENSOR_TEMPERATURE) && isEnabled(SENSOR_PRESSURE)) {
-                // If both temperature and pressure are enabled, we can read both with a single
-                // I2C read, so we will report both values with the same timestamp
-                long now = System.currentTimeMillis();
-                float[] data = bme280.readTemperatureAndPressure();
-                output.add(new SensorData(now, SENSOR_TEMPERATURE, data[0]));
-                output.add(new SensorData(now, SENSOR_PRESSURE, data[1]));
-            } else if (isEnabled(SENSOR_TEMPERATURE)) {
-                float data = bme280.readTemperature();
-                output.add(new SensorData(SENSOR_TEMPERATURE, data));
-            } else if (isEnabled(SENSOR_PRESSURE)) {
-                float data = bme280.readPressure();
-                output.add(new SensorData(SENSOR_PRESSURE, data));
+            synchronized (this) {
+                collectRecentReadings(output);
             }
-            if (isEnabled(SENSOR_HUMIDITY)) {
-                output.add(new SensorData(SENSOR_HUMIDITY, bme280.readHumidity()));
+        } catch (IOException | RuntimeException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        result.complete(output);
+    }
+
+    private void collectRecentReadings(List<SensorData> output) throws IOException {
+        if (bme280 == null) {
+            return;
+        }
+        // One burst read of all data registers, so all values come from the same
+        // conversion and are reported with the same timestamp
+        long now = System.currentTimeMillis();
+        bme280.readAll(readings);
+        if (isBaseEnabled(SENSOR_TEMPERATURE)) {
+            output.add(new SensorData(now, temperatureName,
+                    readings[Bme280Driver.INDEX_TEMPERATURE]));
+        }
+        if (isBaseEnabled(SENSOR_PRESSURE)) {
+            if (highRate == null || !addDecimatedPressure(output)) {
+                output.add(new SensorData(now, pressureName,
+                        readings[Bme280Driver.INDEX_PRESSURE]));
+            }
+        }
+        if (isBaseEnabled(SENSOR_HUMIDITY)) {
+            output.add(new SensorData(now, humidityName,
+                    readings[Bme280Driver.INDEX_HUMIDITY]));
+        }
+        if (highRate != null) {
+            addPeaks(output, isBaseEnabled(SENSOR_PRESSURE_PEAK));
+        }
+    }
+
+    /**
+     * Averages the decimated values since the last collection, a boxcar FIR stage down to the
+     * collection rate. Returns false if there were none yet.
+     */
+    private boolean addDecimatedPressure(List<SensorData> output) {
+        double sum = 0;
+        int count = 0;
+        long timestamp = 0;
+        int drained;
+        while ((drained = highRate.drainDecimated(drainTimestamps, drainValues)) > 0) {
+            for (int i = 0; i < drained; i++) {
+                sum += drainValues[i];
+            }
+            count += drained;
+            timestamp = drainTimestamps[drained - 1];
+        }
+        if (count == 0) {
+            return false;
+        }
+        output.add(new SensorData(timestamp, pressureName, (float) (sum / count)));
+        return true;
+    }
+
+    private void addPeaks(List<SensorData> output, boolean report) {
+        int drained;
+        while ((drained = highRate.drainPeaks(drainTimestamps, drainValues)) > 0) {
+            for (int i = 0; report && i < drained; i++) {
+                output.add(new SensorData(drainTimestamps[i], pressurePeakName,
+                        drainValues[i]));
             }
-        } catch (Throwable t) {
-            Timber.e(t);
         }
     }
 
     @Override
-    public void closeQuietly() {
+    public synchronized void closeQuietly() {
+        if (highRate != null) {
+            highRate.stop();
+            highRate = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
         if (bme280 != null) {
             try {
                 bme280.close();
@@ -0,0 +1,42 @@
+package pl.piotrserafin.weatherstation.sensor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import timber.log.Timber;
+
+/**
+ * Finds BME280/BMP280 devices by probing the chip id at both possible addresses of the given
+ * I2C buses. A single device keeps the plain sensor names; with several, every sensor name
+ * gets a "-&lt;bus&gt;-&lt;address&gt;" suffix, e.g. "temperature-i2c1-76".
+ */
+public class Bme280Discovery {
+
+    private static final int[] ADDRESSES = {
+            Bme280Driver.DEFAULT_I2C_ADDRESS, Bme280Driver.ALTERNATIVE_I2C_ADDRESS
+    };
+
+    public static List<Bme280Collector> discover(List<String> buses) {
+        List<String> foundBuses = new ArrayList<>();
+        List<Integer> foundAddresses = new ArrayList<>();
+        for (String bus : buses) {
+            for (int address : ADDRESSES) {
+                int chipId = Bme280Driver.probeChipId(bus, address);
+                if (chipId == Bme280Driver.CHIP_ID_BME280 || chipId == Bme280Driver.CHIP_ID_BMP280) {
+                    Timber.i("Found chip 0x%x at %s:0x%x", chipId, bus, address);
+                    foundBuses.add(bus);
+                    foundAddresses.add(address);
+                }
+            }
+        }
+        List<Bme280Collector> collectors = new ArrayList<>();
+        for (int i = 0; i < foundBuses.size(); i++) {
+            String suffix = foundBuses.size() == 1 ? "" : "-" +
+                    foundBuses.get(i).toLowerCase(Locale.US) + "-" +
+                    Integer.toHexString(foundAddresses.get(i));
+            collectors.add(new Bme280Collector(foundBuses.get(i), foundAddresses.get(i), suffix));
+        }
+        return collectors;
+    }
+}
@@ -0,0 +1,348 @@
+package pl.piotrserafin.weatherstation.sensor;
+
+import com.google.android.things.pio.I2cDevice;
+import com.google.android.things.pio.PeripheralManager;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Low level BME280/BMP280 driver. All data registers (0xF7-0xFE) are read in a single I2C
+ * burst and compensated with the integer formulas from the datasheet, using calibration
+ * coefficients read once when the device is opened. Control registers are cached, so a
+ * setting which does not change costs no bus traffic. Transfers are serialized per bus, so
+ * devices on different buses can be read concurrently.
+ */
+public class Bme280Driver implements AutoCloseable {
+
+    public static final int DEFAULT_I2C_ADDRESS = 0x77;
+    public static final int ALTERNATIVE_I2C_ADDRESS = 0x76;
+
+    public static final int CHIP_ID_BME280 = 0x60;
+    public static final int CHIP_ID_BMP280 = 0x58;
+
+    public static final int OVERSAMPLING_SKIPPED = 0;
+    public static final int OVERSAMPLING_1X = 1;
+    public static final int OVERSAMPLING_2X = 2;
+    public static final int OVERSAMPLING_4X = 3;
+    public static final int OVERSAMPLING_8X = 4;
+    public static final int OVERSAMPLING_16X = 5;
+
+    public static final int FILTER_OFF = 0;
+    public static final int FILTER_2 = 1;
+    public static final int FILTER_4 = 2;
+    public static final int FILTER_8 = 3;
+    public static final int FILTER_16 = 4;
+
+    public static final int STANDBY_0_5_MS = 0;
+    public static final int STANDBY_62_5_MS = 1;
+    public static final int STANDBY_125_MS = 2;
+    public static final int STANDBY_250_MS = 3;
+    public static final int STANDBY_500_MS = 4;
+    public static final int STANDBY_1000_MS = 5;
+    public static final int STANDBY_10_MS = 6;
+    public static final int STANDBY_20_MS = 7;
+
+    private static final int[] STANDBY_MICROS = {
+            500, 62500, 125000, 250000, 500000, 1000000, 10000, 20000
+    };
+
+    public static final int MODE_SLEEP = 0;
+    public static final int MODE_FORCED = 1;
+    public static final int MODE_NORMAL = 3;
+
+    public static final int INDEX_TEMPERATURE = 0;
+    public static final int INDEX_PRESSURE = 1;
+    public static final int INDEX_HUMIDITY = 2;
+
+    private static final int REG_CALIBRATION_TP = 0x88;
+    private static final int REG_CALIBRATION_H1 = 0xA1;
+    private static final int REG_CALIBRATION_H2 = 0xE1;
+    private static final int REG_CHIP_ID = 0xD0;
+    private static final int REG_CTRL_HUM = 0xF2;
+    private static final int REG_CTRL_MEAS = 0xF4;
+    private static final int REG_CONFIG = 0xF5;
+    private static final int REG_DATA = 0xF7;
+
+    private static final int SKIPPED_TP = 0x80000;
+    private static final int SKIPPED_H = 0x8000;
+
+    private static final Map<String, Object> BUS_LOCKS = new ConcurrentHashMap<>();
+
+    private I2cDevice device;
+    private final Object busLock;
+    private final boolean hasHumidity;
+
+    // calibration
+    private int digT1, digT2, digT3;
+    private long digP1, digP2, digP3, digP4, digP5, digP6, digP7, digP8, digP9;
+    private int digH1, digH2, digH3, digH4, digH5, digH6;
+
+    private int ctrlHum;
+    private int ctrlMeas;
+    private int config;
+
+    private final byte[] data = new byte[8];
+
+    public Bme280Driver(String bus) throws IOException {
+        this(bus, DEFAULT_I2C_ADDRESS);
+    }
+
+    public Bme280Driver(String bus, int address) throws IOException {
+        busLock = getBusLock(bus);
+        PeripheralManager manager = PeripheralManager.getInstance();
+        synchronized (busLock) {
+            device = manager.openI2cDevice(bus, address);
+            try {
+                int chipId = device.readRegByte(REG_CHIP_ID) & 0xFF;
+                if (chipId != CHIP_ID_BME280 && chipId != CHIP_ID_BMP280) {
+                    throw new IOException("Unsupported chip id 0x" + Integer.toHexString(chipId) +
+                            " at " + bus + ":0x" + Integer.toHexString(address));
+                }
+                hasHumidity = chipId == CHIP_ID_BME280;
+                readCalibration();
+                ctrlHum = device.readRegByte(REG_CTRL_HUM) & 0xFF;
+                ctrlMeas = device.readRegByte(REG_CTRL_MEAS) & 0xFF;
+                config = device.readRegByte(REG_CONFIG) & 0xFF;
+            } catch (IOException | RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Returns the chip id of the device at the given address, or -1 if none answers there.
+     */
+    public static int probeChipId(String bus, int address) {
+        synchronized (getBusLock(bus)) {
+            try (I2cDevice probe = PeripheralManager.getInstance().openI2cDevice(bus, address)) {
+                return probe.readRegByte(REG_CHIP_ID) & 0xFF;
+            } catch (IOException | RuntimeException e) {
+                return -1;
+            }
+        }
+    }
+
+    private static Object getBusLock(String bus) {
+        return BUS_LOCKS.computeIfAbsent(bus, key -> new Object());
+    }
+
+    private void readCalibration() throws IOException {
+        byte[] tp = new byte[24];
+        device.readRegBuffer(REG_CALIBRATION_TP, tp, tp.length);
+        digT1 = unsigned16(tp, 0);
+        digT2 = signed16(tp, 2);
+        digT3 = signed16(tp, 4);
+        digP1 = unsigned16(tp, 6);
+        digP2 = signed16(tp, 8);
+        digP3 = signed16(tp, 10);
+        digP4 = signed16(tp, 12);
+        digP5 = signed16(tp, 14);
+        digP6 = signed16(tp, 16);
+        digP7 = signed16(tp, 18);
+        digP8 = signed16(tp, 20);
+        digP9 = signed16(tp, 22);
+        if (!hasHumidity) {
+            return;
+        }
+        digH1 = device.readRegByte(REG_CALIBRATION_H1) & 0xFF;
+        byte[] h = new byte[7];
+        device.readRegBuffer(REG_CALIBRATION_H2, h, h.length);
+        digH2 = signed16(h, 0);
+        digH3 = h[2] & 0xFF;
+        digH4 = (h[3] << 4) | (h[4] & 0x0F);
+        digH5 = (h[5] << 4) | ((h[4] & 0xFF) >> 4);
+        digH6 = h[6];
+    }
+
+    private static int unsigned16(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) | ((buffer[offset + 1] & 0xFF) << 8);
+    }
+
+    private static int signed16(byte[] buffer, int offset) {
+        return (short) unsigned16(buffer, offset);
+    }
+
+    public boolean hasHumiditySensor() {
+        return hasHumidity;
+    }
+
+    public void setTemperatureOversampling(int oversampling) throws IOException {
+        writeCtrlMeas((ctrlMeas & 0x1F) | (oversampling << 5));
+    }
+
+    public void setPressureOversampling(int oversampling) throws IOException {
+        writeCtrlMeas((ctrlMeas & 0xE3) | (oversampling << 2));
+    }
+
+    public void setHumidityOversampling(int oversampling) throws IOException {
+        if (!hasHumidity || ctrlHum == oversampling) {
+            return;
+        }
+        writeRegister(REG_CTRL_HUM, oversampling);
+        ctrlHum = oversampling;
+        // ctrl_hum only becomes effective after a write to ctrl_meas
+        writeRegister(REG_CTRL_MEAS, ctrlMeas);
+    }
+
+    public void setMode(int mode) throws IOException {
+        writeCtrlMeas((ctrlMeas & 0xFC) | mode);
+    }
+
+    /**
+     * Starts a single conversion; the device returns to sleep mode when it is done. The
+     * result can be read after {@link #getMeasurementTimeMicros()}.
+     */
+    public void triggerForcedMeasurement() throws IOException {
+        // always written: the cached value may already say forced mode
+        ctrlMeas = (ctrlMeas & 0xFC) | MODE_FORCED;
+        writeRegister(REG_CTRL_MEAS, ctrlMeas);
+    }
+
+    /**
+     * Maximum duration of one conversion with the current oversampling settings
+     * (datasheet, appendix B).
+     */
+    public int getMeasurementTimeMicros() {
+        int temperature = oversamplingFactor((ctrlMeas >> 5) & 0x07);
+        int pressure = oversamplingFactor((ctrlMeas >> 2) & 0x07);
+        int humidity = hasHumidity ? oversamplingFactor(ctrlHum & 0x07) : 0;
+        int micros = 1250 + 2300 * temperature;
+        if (pressure > 0) {
+            micros += 2300 * pressure + 575;
+        }
+        if (humidity > 0) {
+            micros += 2300 * humidity + 575;
+        }
+        return micros;
+    }
+
+    private static int oversamplingFactor(int oversampling) {
+        return oversampling == OVERSAMPLING_SKIPPED ? 0 : 1 << (Math.min(oversampling, 5) - 1);
+    }
+
+    /**
+     * Applies a complete configuration with as few register writes as possible: registers
+     * which already hold the wanted value are not written at all.
+     */
+    public void applySettings(int temperatureOversampling, int pressureOversampling,
+                              int humidityOversampling, int filter, int standby, int mode)
+            throws IOException {
+        int wantedConfig = (standby << 5) | (filter << 2);
+        int wantedCtrlMeas = (temperatureOversampling << 5) | (pressureOversampling << 2) | mode;
+        if (wantedConfig != config) {
+            // writes to config may be ignored in normal mode
+            writeCtrlMeas(ctrlMeas & 0xFC);
+            writeRegister(REG_CONFIG, wantedConfig);
+            config = wantedConfig;
+        }
+        if (hasHumidity && humidityOversampling != ctrlHum) {
+            writeRegister(REG_CTRL_HUM, humidityOversampling);
+            ctrlHum = humidityOversampling;
+            // ctrl_hum only becomes effective after a write to ctrl_meas
+            ctrlMeas = -1;
+        }
+        writeCtrlMeas(wantedCtrlMeas);
+    }
+
+    /**
+     * Time between two results in normal mode, or of a single conversion in forced mode.
+     */
+    public int getSamplePeriodMicros() {
+        int micros = getMeasurementTimeMicros();
+        if ((ctrlMeas & 0x03) == MODE_NORMAL) {
+            micros += STANDBY_MICROS[(config >> 5) & 0x07];
+        }
+        return micros;
+    }
+
+    private void writeRegister(int register, int value) throws IOException {
+        synchronized (busLock) {
+            device.writeRegByte(register, (byte) value);
+        }
+    }
+
+    private void writeCtrlMeas(int value) throws IOException {
+        if (value != ctrlMeas) {
+            writeRegister(REG_CTRL_MEAS, value);
+            ctrlMeas = value;
+        }
+    }
+
+    /**
+     * Reads temperature [C], pressure [hPa] and humidity [%RH] of one conversion into
+     * {@code output} at {@link #INDEX_TEMPERATURE}, {@link #INDEX_PRESSURE} and
+     * {@link #INDEX_HUMIDITY}. Skipped measurements are reported as NaN.
+     */
+    public void readAll(float[] output) throws IOException {
+        synchronized (busLock) {
+            device.readRegBuffer(REG_DATA, data, hasHumidity ? 8 : 6);
+        }
+        int adcP = ((data[0] & 0xFF) << 12) | ((data[1] & 0xFF) << 4) | ((data[2] & 0xFF) >> 4);
+        int adcT = ((data[3] & 0xFF) << 12) | ((data[4] & 0xFF) << 4) | ((data[5] & 0xFF) >> 4);
+        int adcH = hasHumidity ? ((data[6] & 0xFF) << 8) | (data[7] & 0xFF) : SKIPPED_H;
+
+        if (adcT == SKIPPED_TP) {
+            // pressure and humidity compensation depend on the temperature
+            output[INDEX_TEMPERATURE] = Float.NaN;
+            output[INDEX_PRESSURE] = Float.NaN;
+            output[INDEX_HUMIDITY] = Float.NaN;
+            return;
+        }
+        int tFine = compensateTemperature(adcT);
+        output[INDEX_TEMPERATURE] = ((tFine * 5 + 128) >> 8) / 100f;
+        output[INDEX_PRESSURE] = adcP == SKIPPED_TP ? Float.NaN :
+                compensatePressure(adcP, tFine) / 256f / 100f;
+        output[INDEX_HUMIDITY] = adcH == SKIPPED_H ? Float.NaN :
+                compensateHumidity(adcH, tFine) / 1024f;
+    }
+
+    private int compensateTemperature(int adcT) {
+        int var1 = (((adcT >> 3) - (digT1 << 1)) * digT2) >> 11;
+        int var2 = (((((adcT >> 4) - digT1) * ((adcT >> 4) - digT1)) >> 12) * digT3) >> 14;
+        return var1 + var2;
+    }
+
+    // Pa in Q24.8
+    private long compensatePressure(int adcP, int tFine) {
+        long var1 = (long) tFine - 128000;
+        long var2 = var1 * var1 * digP6;
+        var2 = var2 + ((var1 * digP5) << 17);
+        var2 = var2 + (digP4 << 35);
+        var1 = ((var1 * var1 * digP3) >> 8) + ((var1 * digP2) << 12);
+        var1 = (((1L << 47) + var1) * digP1) >> 33;
+        if (var1 == 0) {
+            return 0;
+        }
+        long p = 1048576 - adcP;
+        p = (((p << 31) - var2) * 3125) / var1;
+        var1 = (digP9 * (p >> 13) * (p >> 13)) >> 25;
+        var2 = (digP8 * p) >> 19;
+        return ((p + var1 + var2) >> 8) + (digP7 << 4);
+    }
+
+    // %RH in Q22.10
+    private int compensateHumidity(int adcH, int tFine) {
+        int v = tFine - 76800;
+        v = (((((adcH << 14) - (digH4 << 20) - (digH5 * v)) + 16384) >> 15) *
+                (((((((v * digH6) >> 10) * (((v * digH3) >> 11) + 32768)) >> 10) + 2097152) *
+                        digH2 + 8192) >> 14));
+        v = v - (((((v >> 15) * (v >> 15)) >> 7) * digH1) >> 4);
+        v = v < 0 ? 0 : v;
+        v = v > 419430400 ? 419430400 : v;
+        return v >> 12;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (device != null) {
+            try {
+                device.close();
+            } finally {
+                device = null;
+            }
+        }
+    }
+}
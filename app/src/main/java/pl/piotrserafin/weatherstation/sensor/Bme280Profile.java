@@ -0,0 +1,58 @@
+package pl.piotrserafin.weatherstation.sensor;
+
+/**
+ * Recommended BME280 settings for typical use cases (datasheet, section 3.5), selectable per
+ * device through the "bme280-profile" device config key.
+ */
+public enum Bme280Profile {
+    /** Lowest power and self-heating: single forced conversions, no filtering. */
+    WEATHER_MONITORING("weather-monitoring", true,
+            Bme280Driver.OVERSAMPLING_1X, Bme280Driver.OVERSAMPLING_1X,
+            Bme280Driver.OVERSAMPLING_1X, Bme280Driver.FILTER_OFF,
+            Bme280Driver.STANDBY_1000_MS),
+    /** Lowest noise for small pressure changes, at the cost of conversion time. */
+    INDOOR_NAVIGATION("indoor-navigation", false,
+            Bme280Driver.OVERSAMPLING_2X, Bme280Driver.OVERSAMPLING_16X,
+            Bme280Driver.OVERSAMPLING_1X, Bme280Driver.FILTER_16,
+            Bme280Driver.STANDBY_0_5_MS),
+    /**
+     * Fast pressure updates for short events; humidity is not measured. The IIR filter is off
+     * so transients are not smeared, the decimator does the smoothing.
+     */
+    HIGH_RATE("high-rate", false,
+            Bme280Driver.OVERSAMPLING_1X, Bme280Driver.OVERSAMPLING_4X,
+            Bme280Driver.OVERSAMPLING_SKIPPED, Bme280Driver.FILTER_OFF,
+            Bme280Driver.STANDBY_0_5_MS);
+
+    private final String configName;
+    final boolean forcedMode;
+    final int temperatureOversampling;
+    final int pressureOversampling;
+    final int humidityOversampling;
+    final int filter;
+    final int standby;
+
+    Bme280Profile(String configName, boolean forcedMode, int temperatureOversampling,
+                  int pressureOversampling, int humidityOversampling, int filter, int standby) {
+        this.configName = configName;
+        this.forcedMode = forcedMode;
+        this.temperatureOversampling = temperatureOversampling;
+        this.pressureOversampling = pressureOversampling;
+        this.humidityOversampling = humidityOversampling;
+        this.filter = filter;
+        this.standby = standby;
+    }
+
+    public String getConfigName() {
+        return configName;
+    }
+
+    public static Bme280Profile fromConfigName(String name) {
+        for (Bme280Profile profile : values()) {
+            if (profile.configName.equals(name)) {
+                return profile;
+            }
+        }
+        throw new IllegalArgumentException("Unknown BME280 profile " + name);
+    }
+}
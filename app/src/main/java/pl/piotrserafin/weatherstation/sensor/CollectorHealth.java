@@ -0,0 +1,139 @@
+package pl.piotrserafin.weatherstation.sensor;
+
+/**
+ * Circuit breaker for one collector. After {@link #FAILURE_THRESHOLD} consecutive failures the
+ * circuit opens and no attempts are made until the backoff has passed; then a single probe is
+ * let through (half-open). A failed probe doubles the backoff up to {@link #MAX_BACKOFF_MS},
+ * a successful one closes the circuit again. Times are in {@code SystemClock.uptimeMillis()}.
+ */
+public class CollectorHealth {
+
+    public enum State {
+        CLOSED("closed"),
+        OPEN("open"),
+        HALF_OPEN("half-open");
+
+        private final String configName;
+
+        State(String configName) {
+            this.configName = configName;
+        }
+
+        public String getConfigName() {
+            return configName;
+        }
+    }
+
+    static final int FAILURE_THRESHOLD = 3;
+    static final long INITIAL_BACKOFF_MS = 10 * 1000L;
+    static final long MAX_BACKOFF_MS = 30 * 60 * 1000L;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long backoffMillis = INITIAL_BACKOFF_MS;
+    private long retryAt;
+    private long lastSuccess;
+    private String lastError;
+
+    // since the previous snapshot
+    private int attempts;
+    private int failures;
+
+    /**
+     * Returns whether the collector may be used now. Moves an open circuit whose backoff
+     * has passed to half-open.
+     */
+    public synchronized boolean allowAttempt(long now) {
+        if (state == State.OPEN) {
+            if (now < retryAt) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+        }
+        attempts++;
+        return true;
+    }
+
+    /**
+     * Returns true if the collector was failing before, i.e. it just recovered.
+     */
+    public synchronized boolean onSuccess(long now) {
+        boolean recovered = consecutiveFailures > 0;
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        backoffMillis = INITIAL_BACKOFF_MS;
+        lastSuccess = now;
+        return recovered;
+    }
+
+    /**
+     * Returns true if this failure changed the health worth a log line: the first failure
+     * of a series, or the circuit (re)opening.
+     */
+    public synchronized boolean onFailure(long now, String error) {
+        consecutiveFailures++;
+        failures++;
+        lastError = error;
+        if (state == State.HALF_OPEN) {
+            backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MS);
+            open(now);
+            return false;
+        }
+        if (state == State.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD) {
+            open(now);
+            return true;
+        }
+        return consecutiveFailures == 1;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized long getBackoffMillis() {
+        return backoffMillis;
+    }
+
+    /**
+     * Returns the current health, with the error rate over the attempts since the previous
+     * call.
+     */
+    public synchronized Snapshot snapshotAndReset(long now) {
+        Snapshot snapshot = new Snapshot();
+        snapshot.state = state;
+        snapshot.consecutiveFailures = consecutiveFailures;
+        snapshot.millisSinceSuccess = lastSuccess == 0 ? -1 : now - lastSuccess;
+        snapshot.lastError = lastError;
+        snapshot.errorRate = attempts == 0 ? 0 : (float) failures / attempts;
+        attempts = 0;
+        failures = 0;
+        return snapshot;
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        retryAt = now + backoffMillis;
+    }
+
+    public static class Snapshot {
+        public String name;
+        public State state;
+        public int consecutiveFailures;
+        // -1 if there was none yet
+        public long millisSinceSuccess;
+        public float errorRate;
+        public String lastError;
+
+        @Override
+        public String toString() {
+            return "Snapshot{" +
+                    "name='" + name + '\'' +
+                    ", state=" + state +
+                    ", consecutiveFailures=" + consecutiveFailures +
+                    ", millisSinceSuccess=" + millisSinceSuccess +
+                    ", errorRate=" + errorRate +
+                    ", lastError='" + lastError + '\'' +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package pl.piotrserafin.weatherstation.sensor;
+
+import android.os.Process;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import pl.piotrserafin.weatherstation.pipeline.CicDecimator;
+import pl.piotrserafin.weatherstation.pipeline.SampleRing;
+import timber.log.Timber;
+
+/**
+ * Samples one channel at a fixed high rate on a dedicated thread and decimates it with a CIC
+ * filter. Decimated values and peak events (excursions from the decimated baseline beyond a
+ * threshold) are handed to the consumer through {@link SampleRing}s. The sampling loop does
+ * not allocate.
+ */
+public class HighRateAcquisition {
+
+    private static final int CIC_ORDER = 3;
+    // fixed point resolution of the decimator input, 1/10000 of the source unit
+    private static final float FIXED_POINT_SCALE = 10000f;
+    // keeps factor^CIC_ORDER times the largest fixed point pressure (about 2^24) in a long
+    public static final int MAX_DECIMATION = 1024;
+    private static final int RING_CAPACITY = 256;
+
+    public interface Source {
+        /**
+         * Returns the current value, or NaN if there is none.
+         */
+        float read() throws IOException;
+    }
+
+    private final Settings settings;
+    private final Source source;
+    private final CicDecimator decimator;
+    private final SampleRing decimated = new SampleRing(RING_CAPACITY);
+    private final SampleRing peaks = new SampleRing(RING_CAPACITY);
+    private final Thread thread;
+
+    private volatile boolean running;
+    private volatile long readErrors;
+    private volatile long overruns;
+
+    // owned by the sampling thread
+    private boolean hasBaseline;
+    private float baseline;
+    private boolean peakActive;
+    private float peakDeviation;
+    private long peakTimestamp;
+
+    public HighRateAcquisition(String name, Settings settings, Source source) {
+        this.settings = settings;
+        this.source = source;
+        this.decimator = new CicDecimator(CIC_ORDER, settings.decimation);
+        this.thread = new Thread(this::run, name);
+    }
+
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Stops sampling without waiting for the thread, which may still be blocked in the source.
+     */
+    public void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+    public Settings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Consumer side, see {@link SampleRing#drainTo(long[], float[])}.
+     */
+    public int drainDecimated(long[] timestamps, float[] values) {
+        return decimated.drainTo(timestamps, values);
+    }
+
+    /**
+     * Consumer side. Values are the signed deviation from the baseline at the extreme of the
+     * excursion.
+     */
+    public int drainPeaks(long[] timestamps, float[] values) {
+        return peaks.drainTo(timestamps, values);
+    }
+
+    public long getReadErrors() {
+        return readErrors;
+    }
+
+    public long getOverruns() {
+        return overruns;
+    }
+
+    private void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_MORE_FAVORABLE);
+        long periodNanos = 1000000000L / settings.rateHz;
+        long nextRun = System.nanoTime();
+        while (running) {
+            sample(System.currentTimeMillis());
+            nextRun += periodNanos;
+            long waitNanos = nextRun - System.nanoTime();
+            if (waitNanos > 0) {
+                LockSupport.parkNanos(waitNanos);
+            } else if (waitNanos < -periodNanos) {
+                // fell behind by more than a period, skip the missed samples
+                overruns++;
+                nextRun = System.nanoTime();
+            }
+        }
+    }
+
+    private void sample(long now) {
+        float value;
+        try {
+            value = source.read();
+        } catch (IOException e) {
+            if (readErrors++ == 0) {
+                Timber.w(e, "High rate read failed on %s", thread.getName());
+            }
+            return;
+        }
+        if (Float.isNaN(value)) {
+            return;
+        }
+        detectPeak(now, value);
+        if (decimator.add(Math.round(value * FIXED_POINT_SCALE))) {
+            baseline = decimator.getOutput() / FIXED_POINT_SCALE;
+            hasBaseline = true;
+            decimated.offer(now, baseline);
+        }
+    }
+
+    private void detectPeak(long now, float value) {
+        if (!hasBaseline) {
+            return;
+        }
+        float deviation = value - baseline;
+        float magnitude = Math.abs(deviation);
+        if (peakActive) {
+            if (magnitude > Math.abs(peakDeviation)) {
+                peakDeviation = deviation;
+                peakTimestamp = now;
+            }
+            // hysteresis, so noise around the threshold does not split one event
+            if (magnitude < settings.peakThreshold / 2) {
+                peaks.offer(peakTimestamp, peakDeviation);
+                peakActive = false;
+            }
+        } else if (magnitude >= settings.peakThreshold) {
+            peakActive = true;
+            peakDeviation = deviation;
+            peakTimestamp = now;
+        }
+    }
+
+    public static class Settings {
+        public int rateHz = 25;
+        public int decimation = 25;
+        public float peakThreshold = 0.5f;
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Settings settings = (Settings) o;
+            return rateHz == settings.rateHz && decimation == settings.decimation &&
+                    Float.compare(settings.peakThreshold, peakThreshold) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * rateHz + decimation) + Float.floatToIntBits(peakThreshold);
+        }
+
+        @Override
+        public String toString() {
+            return "Settings{" +
+                    "rateHz=" + rateHz +
+                    ", decimation=" + decimation +
+                    ", peakThreshold=" + peakThreshold +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package pl.piotrserafin.weatherstation.sensor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import pl.piotrserafin.weatherstation.model.SensorData;
+
+/**
+ * Runs a blocking {@link SensorCollector} on a dedicated single thread. All calls into the
+ * wrapped collector are made on that thread, so it does not need to be thread safe, and a
+ * slow or hung collector never blocks the caller. The sensor lists are copies kept by the
+ * adapter: enabling a sensor shows up at once and is applied to the collector in order with
+ * the collections, the lists are refreshed from the collector after every call.
+ */
+public class SyncCollectorAdapter implements AsyncSensorCollector {
+
+    private static final long IDLE_THREAD_SECONDS = 60;
+
+    private final SensorCollector collector;
+    // at most one thread, which exits when idle, so the collector is never called concurrently
+    private final ThreadPoolExecutor executor;
+
+    private volatile List<String> availableSensors;
+    private volatile List<String> enabledSensors;
+
+    public SyncCollectorAdapter(SensorCollector collector) {
+        this.collector = collector;
+        String threadName = "Collector-" + collector.getClass().getSimpleName();
+        this.executor = new ThreadPoolExecutor(1, 1, IDLE_THREAD_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> new Thread(r, threadName));
+        this.executor.allowCoreThreadTimeOut(true);
+        // no other thread uses the collector yet
+        refreshSensors();
+    }
+
+    /**
+     * Activation is done on the collector thread as part of every collection, a failure
+     * completes the collection exceptionally. Always returns true without waiting.
+     */
+    @Override
+    public boolean activate() {
+        return true;
+    }
+
+    @Override
+    public void setEnabled(String sensor, boolean enabled) {
+        synchronized (this) {
+            List<String> sensors = new ArrayList<>(enabledSensors);
+            sensors.remove(sensor);
+            if (enabled && availableSensors.contains(sensor)) {
+                sensors.add(sensor);
+            }
+            enabledSensors = Collections.unmodifiableList(sensors);
+        }
+        executor.execute(() -> {
+            collector.setEnabled(sensor, enabled);
+            refreshSensors();
+        });
+    }
+
+    @Override
+    public boolean isEnabled(String sensor) {
+        return enabledSensors.contains(sensor);
+    }
+
+    @Override
+    public List<String> getAvailableSensors() {
+        return availableSensors;
+    }
+
+    @Override
+    public List<String> getEnabledSensors() {
+        return enabledSensors;
+    }
+
+    @Override
+    public CompletableFuture<List<SensorData>> collectRecentReadingsAsync() {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                if (!collector.activate()) {
+                    throw new IllegalStateException("activation failed");
+                }
+                List<SensorData> output = new ArrayList<>();
+                collector.collectRecentReadings(output);
+                return output;
+            } finally {
+                refreshSensors();
+            }
+        }, executor);
+    }
+
+    /**
+     * Queued behind a running collection instead of waiting for it.
+     */
+    @Override
+    public void closeQuietly() {
+        executor.execute(collector::closeQuietly);
+    }
+
+    // on the collector thread, or before it exists
+    private void refreshSensors() {
+        List<String> available = Collections.unmodifiableList(
+                new ArrayList<>(collector.getAvailableSensors()));
+        List<String> enabled = Collections.unmodifiableList(
+                new ArrayList<>(collector.getEnabledSensors()));
+        synchronized (this) {
+            availableSensors = available;
+            enabledSensors = enabled;
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package pl.piotrserafin.weatherstation.utils;
 
+import java.util.Collections;
+import java.util.List;
+
 import pl.piotrserafin.weatherstation.lcd.Lcd;
+import pl.piotrserafin.weatherstation.lcd.Pcf8574Lcd;
 
 public class RpiSettings {
 
@@ -10,8 +14,15 @@ public class RpiSettings {
 
     public static String getI2cBusName() { return "I2C1"; }
 
+    public static List<String> getI2cBusNames() { return Collections.singletonList("I2C1"); }
+
     public static String getButtonGpioName() { return "BCM23"; }
 
+    // bus of a PCF8574 backpack LCD, null when the LCD is wired to GPIOs
+    public static String getLcdI2cBusName() { return null; }
+
+    public static int getLcdI2cAddress() { return Pcf8574Lcd.DEFAULT_ADDRESS; }
+
     public static String getLcdGpioName(Lcd.Pin pin) {
         switch (pin) {
             case RS:
@@ -26,6 +37,9 @@ public class RpiSettings {
                 return "BCM20";
             case D7:
                 return "BCM21";
+            case RW:
+                // tied to ground, the LCD driver then uses fixed timing
+                return null;
             default:
                 throw new IllegalArgumentException("RPI3" + ("Unknown Pin" + pin.name() + ")"));
         }
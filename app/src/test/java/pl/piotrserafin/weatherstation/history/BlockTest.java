@@ -0,0 +1,172 @@
+package pl.piotrserafin.weatherstation.history;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BlockTest {
+
+    private static final int OFFSET = Block.SIZE;
+
+    private static ByteBuffer newBuffer() {
+        // the block does not start at 0, as in a segment
+        return ByteBuffer.allocate(3 * Block.SIZE);
+    }
+
+    private static int fill(Block.Writer writer, long[] timestamps, float[] values) {
+        int count = 0;
+        while (count < timestamps.length && writer.append(timestamps[count], values[count])) {
+            count++;
+        }
+        return count;
+    }
+
+    private static void assertDecodes(ByteBuffer buffer, long[] timestamps, float[] values,
+                                      int count) {
+        assertEquals(count, Block.getCount(buffer, OFFSET));
+        Block.Reader reader = new Block.Reader(buffer, OFFSET);
+        for (int i = 0; i < count; i++) {
+            assertTrue(reader.next());
+            assertEquals(timestamps[i], reader.getTimestamp());
+            assertEquals(Float.floatToRawIntBits(values[i]),
+                    Float.floatToRawIntBits(reader.getValue()));
+        }
+        assertFalse(reader.next());
+    }
+
+    private static long[] jitteredTimestamps(int count, Random random) {
+        long[] timestamps = new long[count];
+        long timestamp = 1_500_000_000_000L;
+        for (int i = 0; i < count; i++) {
+            // mostly regular, sometimes late or after a long gap
+            timestamp += 1000 + (random.nextInt(10) == 0 ? random.nextInt(5000) : 0) +
+                    (random.nextInt(500) == 0 ? 86_400_000L : 0);
+            timestamps[i] = timestamp;
+        }
+        return timestamps;
+    }
+
+    private static float[] noisyValues(int count, Random random) {
+        float[] values = new float[count];
+        float value = 1013.25f;
+        for (int i = 0; i < count; i++) {
+            value += random.nextInt(4) == 0 ? (float) random.nextGaussian() * 0.1f : 0f;
+            values[i] = value;
+        }
+        values[count / 2] = Float.NaN;
+        values[count / 3] = -0f;
+        return values;
+    }
+
+    @Test
+    public void roundTrip_preservesTimestampsAndValueBits() {
+        Random random = new Random(7);
+        long[] timestamps = jitteredTimestamps(20000, random);
+        float[] values = noisyValues(20000, random);
+        ByteBuffer buffer = newBuffer();
+
+        int count = fill(new Block.Writer(buffer, OFFSET), timestamps, values);
+
+        assertTrue("block should fill up", count < timestamps.length);
+        assertTrue("compression " + count, count > 500);
+        assertDecodes(buffer, timestamps, values, count);
+        // neighbouring blocks are untouched
+        for (int i = 0; i < OFFSET; i++) {
+            assertEquals(0, buffer.get(i));
+            assertEquals(0, buffer.get(OFFSET + Block.SIZE + i));
+        }
+    }
+
+    @Test
+    public void header_describesTheBlock() {
+        ByteBuffer buffer = newBuffer();
+        Block.Writer writer = new Block.Writer(buffer, OFFSET);
+        writer.append(1000, 5f);
+        writer.append(2000, -3f);
+        writer.append(3500, 7f);
+
+        assertEquals(3, Block.getCount(buffer, OFFSET));
+        assertEquals(1000, Block.getFirstTimestamp(buffer, OFFSET));
+        assertEquals(3500, Block.getLastTimestamp(buffer, OFFSET));
+        assertEquals(-3f, Block.getMin(buffer, OFFSET), 0f);
+        assertEquals(7f, Block.getMax(buffer, OFFSET), 0f);
+    }
+
+    @Test
+    public void extremeValuesAndDeltas_roundTrip() {
+        long[] timestamps = {0, 1, 2, 100, 100 + 63, 100 + 63 + 200, 1_000_000_000L,
+                1_000_000_001L, 1_000_000_002L};
+        float[] values = {0f, Float.MAX_VALUE, -Float.MAX_VALUE, Float.MIN_VALUE, 1f, 1f,
+                Float.POSITIVE_INFINITY, 0.1f, 0.2f};
+        ByteBuffer buffer = newBuffer();
+
+        int count = fill(new Block.Writer(buffer, OFFSET), timestamps, values);
+
+        assertEquals(timestamps.length, count);
+        assertDecodes(buffer, timestamps, values, count);
+    }
+
+    @Test
+    public void gapBeyondDeltaRange_endsTheBlock() {
+        ByteBuffer buffer = newBuffer();
+        Block.Writer writer = new Block.Writer(buffer, OFFSET);
+        assertTrue(writer.append(0, 1f));
+        assertFalse(writer.append(5_000_000_000L, 2f));
+        assertDecodes(buffer, new long[]{0}, new float[]{1f}, 1);
+    }
+
+    @Test
+    public void resume_encodesLikeAnUninterruptedWriter() {
+        Random random = new Random(11);
+        long[] timestamps = jitteredTimestamps(20000, random);
+        float[] values = noisyValues(20000, random);
+
+        ByteBuffer continuous = newBuffer();
+        int expected = fill(new Block.Writer(continuous, OFFSET), timestamps, values);
+
+        ByteBuffer resumed = newBuffer();
+        Block.Writer writer = new Block.Writer(resumed, OFFSET);
+        for (int i = 0; i < 300; i++) {
+            assertTrue(writer.append(timestamps[i], values[i]));
+        }
+        writer = Block.Writer.resume(resumed, OFFSET);
+        int count = 300;
+        while (count < timestamps.length && writer.append(timestamps[count], values[count])) {
+            count++;
+        }
+
+        assertEquals(expected, count);
+        assertEquals(continuous, resumed);
+    }
+
+    @Test
+    public void resume_clearsBitsOfAnInterruptedAppend() {
+        ByteBuffer buffer = newBuffer();
+        Block.Writer writer = new Block.Writer(buffer, OFFSET);
+        writer.append(1000, 1f);
+        writer.append(2000, 2f);
+        // payload written, header not updated yet
+        for (int i = OFFSET + Block.HEADER_SIZE + 17; i < OFFSET + Block.HEADER_SIZE + 40; i++) {
+            buffer.put(i, (byte) 0xFF);
+        }
+
+        writer = Block.Writer.resume(buffer, OFFSET);
+        writer.append(3000, 3f);
+        writer.append(4000, 3.5f);
+
+        assertDecodes(buffer, new long[]{1000, 2000, 3000, 4000},
+                new float[]{1f, 2f, 3f, 3.5f}, 4);
+    }
+
+    @Test
+    public void resume_ofEmptyBlock_startsFresh() {
+        ByteBuffer buffer = newBuffer();
+        Block.Writer writer = Block.Writer.resume(buffer, OFFSET);
+        assertEquals(0, writer.getCount());
+        writer.append(10, 1f);
+        assertDecodes(buffer, new long[]{10}, new float[]{1f}, 1);
+    }
+}
@@ -0,0 +1,104 @@
+package pl.piotrserafin.weatherstation.history;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import pl.piotrserafin.weatherstation.model.SensorData;
+
+import static org.junit.Assert.*;
+
+public class TimeSeriesStoreTest {
+
+    private static final long DAY = 24*60*60*1000L;
+    private static final long START = 100 * DAY;
+
+    private File directory;
+    private TimeSeriesStore store;
+
+    @Before
+    public void openStore() throws IOException {
+        directory = Files.createTempDirectory("store").toFile();
+        store = new TimeSeriesStore(directory);
+    }
+
+    @After
+    public void deleteDirectory() {
+        store.close();
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static List<RollupRecord> records(RollupSeries series) {
+        List<RollupRecord> records = new ArrayList<>();
+        series.forEach(Long.MIN_VALUE, Long.MAX_VALUE, record -> {
+            RollupRecord copy = new RollupRecord();
+            copy.reset(record.getBucketStart());
+            copy.merge(record);
+            records.add(copy);
+        });
+        return records;
+    }
+
+    @Test
+    public void rollUp_skipsNaNReadings() throws IOException {
+        store.append(new SensorData(START, "pressure", Float.NaN));
+        store.append(new SensorData(START + 10000, "pressure", 1000f));
+        store.append(new SensorData(START + 20000, "pressure", 1002f));
+        // the last reading of the minute is NaN as well
+        store.append(new SensorData(START + 30000, "pressure", Float.NaN));
+        store.runMaintenance(START + 2 * DAY);
+
+        for (RollupTier tier : RollupTier.values()) {
+            List<RollupRecord> records = records(store.getRollup("pressure", tier));
+            assertEquals(tier.toString(), 1, records.size());
+            RollupRecord record = records.get(0);
+            assertEquals(2, record.getCount());
+            assertEquals(1000f, record.getMin(), 0f);
+            assertEquals(1002f, record.getMax(), 0f);
+            assertEquals(1001f, record.getMean(), 1e-3f);
+            assertEquals(1002f, record.getLast(), 0f);
+        }
+    }
+
+    @Test
+    public void rollUp_dropsBucketsWithOnlyNaNReadings() throws IOException {
+        store.append(new SensorData(START, "pressure", Float.NaN));
+        store.append(new SensorData(START + 2 * 60000, "pressure", 1000f));
+        store.runMaintenance(START + 2 * DAY);
+
+        List<RollupRecord> minutes = records(store.getRollup("pressure", RollupTier.MINUTE));
+        assertEquals(1, minutes.size());
+        assertEquals(START + 2 * 60000, minutes.get(0).getBucketStart());
+        assertEquals(1, records(store.getRollup("pressure", RollupTier.DAY)).size());
+    }
+
+    @Test
+    public void query_ofDailyMeanStaysFinite() throws IOException {
+        for (int i = 0; i < 120; i++) {
+            float value = i % 10 == 0 ? Float.NaN : 1000f;
+            store.append(new SensorData(START + i * 60000L, "pressure", value));
+        }
+        store.runMaintenance(START + 2 * DAY);
+
+        float[] mean = {Float.NaN};
+        assertEquals(1, store.query(new HistoryQuery("pressure", START, START + DAY,
+                HistoryQuery.Aggregation.MEAN, DAY), (timestamp, value) -> mean[0] = value));
+        assertEquals(1000f, mean[0], 0f);
+    }
+}
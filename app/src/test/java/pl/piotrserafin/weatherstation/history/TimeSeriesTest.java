@@ -0,0 +1,156 @@
+package pl.piotrserafin.weatherstation.history;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TimeSeriesTest {
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("series").toFile();
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static List<Long> timestamps(TimeSeries series) {
+        List<Long> timestamps = new ArrayList<>();
+        series.forEach(Long.MIN_VALUE, Long.MAX_VALUE, (timestamp, value) -> {
+            assertEquals(timestamp / 1000f, value, 0f);
+            timestamps.add(timestamp);
+        });
+        return timestamps;
+    }
+
+    @Test
+    public void reopen_continuesThePartialBlock() throws IOException {
+        TimeSeries series = new TimeSeries("pressure", directory);
+        for (long t = 1000; t <= 10000; t += 1000) {
+            assertTrue(series.append(t, t / 1000f));
+        }
+        series.flush();
+
+        TimeSeries reopened = new TimeSeries("pressure", directory);
+        assertFalse(reopened.append(10000, 10f));
+        for (long t = 11000; t <= 20000; t += 1000) {
+            assertTrue(reopened.append(t, t / 1000f));
+        }
+
+        List<Long> stored = timestamps(reopened);
+        assertEquals(20, stored.size());
+        assertEquals(Long.valueOf(20000), stored.get(19));
+        // all samples share the first block
+        assertEquals(0, Block.getCount(
+                MappedSegment.openAll(directory, TimeSeries.SEGMENT_SIZE).get(0).getBuffer(),
+                Block.SIZE));
+    }
+
+    @Test
+    public void deleteSegmentsBefore_keepsTheCurrentSegment() throws IOException {
+        TimeSeries series = new TimeSeries("pressure", directory);
+        // a gap too large for one block starts a new block for every sample
+        long t = 0;
+        for (int i = 0; i < TimeSeries.BLOCKS_PER_SEGMENT + 1; i++) {
+            t += 5_000_000_000L;
+            assertTrue(series.append(t, t / 1000f));
+        }
+        assertEquals(2, directory.listFiles().length);
+
+        assertEquals(1, series.deleteSegmentsBefore(t));
+        assertEquals(1, directory.listFiles().length);
+        assertEquals(1, timestamps(series).size());
+    }
+
+    @Test
+    public void forEach_doesNotBlockAppendsWhileConsuming() throws Exception {
+        TimeSeries series = new TimeSeries("pressure", directory);
+        series.append(1000, 1f);
+        boolean[] appended = new boolean[1];
+        List<Long> visited = new ArrayList<>();
+        series.forEach(0, Long.MAX_VALUE, (timestamp, value) -> {
+            visited.add(timestamp);
+            if (timestamp != 1000) {
+                return;
+            }
+            Thread writer = new Thread(() -> {
+                try {
+                    appended[0] = series.append(2000, 2f);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            writer.start();
+            try {
+                writer.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(appended[0]);
+        // the sample appended meanwhile is still visited
+        assertEquals(2, visited.size());
+    }
+
+    @Test
+    public void forEach_visitsSamplesOfAllBlocksInRange() throws IOException {
+        TimeSeries series = new TimeSeries("pressure", directory);
+        long t = 0;
+        for (int i = 0; i < 5; i++) {
+            // every gap starts a new block
+            t += 5_000_000_000L;
+            series.append(t, t / 1000f);
+            series.append(t + 1000, (t + 1000) / 1000f);
+        }
+        List<Long> visited = new ArrayList<>();
+        series.forEach(5_000_001_000L, 20_000_000_001L,
+                (timestamp, value) -> visited.add(timestamp));
+        assertEquals(6, visited.size());
+        assertEquals(Long.valueOf(5_000_001_000L), visited.get(0));
+        assertEquals(Long.valueOf(20_000_000_000L), visited.get(5));
+    }
+
+    @Test
+    public void forEach_findsBlocksOfARangeStartingBetweenBlocks() throws IOException {
+        TimeSeries series = new TimeSeries("pressure", directory);
+        // one block per sample, spread over several segments
+        long gap = 5_000_000_000L;
+        int samples = 3 * TimeSeries.BLOCKS_PER_SEGMENT;
+        for (int i = 1; i <= samples; i++) {
+            assertTrue(series.append(i * gap, i));
+        }
+
+        List<Long> visited = new ArrayList<>();
+        series.forEach(100 * gap + gap / 2, 110 * gap, (timestamp, value) -> {
+            assertEquals(timestamp / gap, value, 0f);
+            visited.add(timestamp);
+        });
+        assertEquals(9, visited.size());
+        assertEquals(Long.valueOf(101 * gap), visited.get(0));
+        assertEquals(Long.valueOf(109 * gap), visited.get(8));
+
+        List<Long> none = new ArrayList<>();
+        series.forEach(samples * gap + 1, Long.MAX_VALUE,
+                (timestamp, value) -> none.add(timestamp));
+        series.forEach(Long.MIN_VALUE, gap, (timestamp, value) -> none.add(timestamp));
+        assertTrue(none.isEmpty());
+    }
+}
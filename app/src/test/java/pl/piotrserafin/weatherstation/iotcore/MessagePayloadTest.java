@@ -0,0 +1,60 @@
+package pl.piotrserafin.weatherstation.iotcore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessagePayloadTest {
+
+    private static String config(String extra) {
+        return "{\"version\": 2, \"telemetry-events-per-hour\": 60, " +
+                "\"state-updates-per-hour\": 6, \"active-sensors\": [\"temperature\"]" +
+                extra + "}";
+    }
+
+    @Test
+    public void parseDeviceConfig_defaultsSamplesToTelemetryRate() {
+        MessagePayload.DeviceConfig config = MessagePayload.parseDeviceConfigPayload(config(""));
+        assertEquals(2, config.version);
+        assertEquals(60, config.samplesPerHour);
+        assertArrayEquals(new String[]{"temperature"}, config.activeSensors);
+    }
+
+    @Test
+    public void parseDeviceConfig_readsSamplesPerHour() {
+        MessagePayload.DeviceConfig config = MessagePayload.parseDeviceConfigPayload(
+                config(", \"samples-per-hour\": 3600"));
+        assertEquals(3600, config.samplesPerHour);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseDeviceConfig_rejectsZeroSamplesPerHour() {
+        MessagePayload.parseDeviceConfigPayload(config(", \"samples-per-hour\": 0"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseDeviceConfig_rejectsNegativeSamplesPerHour() {
+        MessagePayload.parseDeviceConfigPayload(config(", \"samples-per-hour\": -10"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseDeviceConfig_rejectsZeroTelemetryRateWithoutSamplesPerHour() {
+        MessagePayload.parseDeviceConfigPayload(
+                config("").replace("\"telemetry-events-per-hour\": 60",
+                        "\"telemetry-events-per-hour\": 0"));
+    }
+
+    @Test
+    public void parseDeviceConfig_readsHighRatePressure() {
+        MessagePayload.DeviceConfig config = MessagePayload.parseDeviceConfigPayload(config(
+                ", \"high-rate-pressure\": {\"rate-hz\": 50, \"decimation\": 1024}"));
+        assertEquals(50, config.highRatePressure.rateHz);
+        assertEquals(1024, config.highRatePressure.decimation);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseDeviceConfig_rejectsDecimationOverflowingTheCic() {
+        MessagePayload.parseDeviceConfigPayload(config(
+                ", \"high-rate-pressure\": {\"rate-hz\": 50, \"decimation\": 1025}"));
+    }
+}
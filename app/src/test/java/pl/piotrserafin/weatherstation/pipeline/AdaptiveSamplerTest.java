@@ -0,0 +1,77 @@
+package pl.piotrserafin.weatherstation.pipeline;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveSamplerTest {
+
+    private static final long MIN_INTERVAL = 10000;
+    private static final long MAX_INTERVAL = 600000;
+
+    private static AdaptiveSampler createSampler(float slopeThresholdPerHour) {
+        AdaptiveSampler.Policy policy = new AdaptiveSampler.Policy();
+        policy.minIntervalMillis = MIN_INTERVAL;
+        policy.maxIntervalMillis = MAX_INTERVAL;
+        policy.slopeThresholdPerHour = slopeThresholdPerHour;
+        AdaptiveSampler sampler = new AdaptiveSampler(60000);
+        sampler.configure(60000, Collections.singletonMap("pressure", policy), 0);
+        return sampler;
+    }
+
+    private static long run(AdaptiveSampler sampler, float slopePerHour, float noise,
+                            long durationMillis) {
+        Random random = new Random(1);
+        long now = 0;
+        while (now < durationMillis) {
+            float value = 1000f + slopePerHour * now / 3600000f +
+                    (float) random.nextGaussian() * noise;
+            sampler.onSampled("pressure", now, now, value);
+            now = sampler.getNextDue(Collections.singletonList("pressure"), now);
+        }
+        return sampler.getEffectiveIntervals().get("pressure");
+    }
+
+    @Test
+    public void noise_doesNotPinTheMinimumInterval() {
+        // 1 Pa of noise on a flat signal, with a 50 Pa/h threshold
+        long interval = run(createSampler(50f), 0f, 1f, 6 * 3600000L);
+        assertTrue("interval " + interval, interval > MAX_INTERVAL / 2);
+    }
+
+    @Test
+    public void steepTrend_usesTheMinimumInterval() {
+        long interval = run(createSampler(50f), 200f, 1f, 6 * 3600000L);
+        assertEquals(MIN_INTERVAL, interval);
+    }
+
+    @Test
+    public void fallingTrend_countsLikeRisingTrend() {
+        long interval = run(createSampler(50f), -200f, 1f, 6 * 3600000L);
+        assertEquals(MIN_INTERVAL, interval);
+    }
+
+    @Test
+    public void fastSampling_stillFitsTheWholeWindow() {
+        AdaptiveSampler.Policy policy = new AdaptiveSampler.Policy();
+        policy.minIntervalMillis = 1000;
+        policy.maxIntervalMillis = MAX_INTERVAL;
+        policy.slopeThresholdPerHour = 50f;
+        AdaptiveSampler sampler = new AdaptiveSampler(1000);
+        sampler.configure(1000, Collections.singletonMap("pressure", policy), 0);
+        Random random = new Random(1);
+        // 1 Hz: 20 minutes rising by 200 Pa/h, then 2 minutes flat
+        float value = 1000f;
+        for (long now = 0; now < 22 * 60000L; now += 1000) {
+            if (now < 20 * 60000L) {
+                value += 200f / 3600f;
+            }
+            sampler.onSampled("pressure", now, now, value + (float) random.nextGaussian() * 0.1f);
+        }
+        // a 64 s fit would only see the flat part
+        assertEquals(1000L, (long) sampler.getEffectiveIntervals().get("pressure"));
+    }
+}
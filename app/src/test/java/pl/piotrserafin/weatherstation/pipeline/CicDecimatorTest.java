@@ -0,0 +1,106 @@
+package pl.piotrserafin.weatherstation.pipeline;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CicDecimatorTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsZeroFactor() {
+        new CicDecimator(3, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsZeroOrder() {
+        new CicDecimator(0, 4);
+    }
+
+    @Test
+    public void add_emitsOneOutputPerFactorSamples() {
+        CicDecimator decimator = new CicDecimator(1, 8);
+        int outputs = 0;
+        for (int i = 0; i < 80; i++) {
+            if (decimator.add(100)) {
+                outputs++;
+                assertEquals(7, i % 8);
+            }
+        }
+        assertEquals(10, outputs);
+    }
+
+    @Test
+    public void add_suppressesWarmupOutputs() {
+        CicDecimator decimator = new CicDecimator(3, 4);
+        int outputs = 0;
+        for (int i = 0; i < 40; i++) {
+            if (decimator.add(100)) {
+                outputs++;
+            }
+        }
+        // ten decimation periods, the first two fill the filter
+        assertEquals(8, outputs);
+    }
+
+    @Test
+    public void output_hasUnityDcGain() {
+        CicDecimator decimator = new CicDecimator(3, 16);
+        for (int i = 0; i < 16 * 10; i++) {
+            if (decimator.add(101325)) {
+                assertEquals(101325, decimator.getOutput());
+            }
+        }
+    }
+
+    @Test
+    public void output_averagesAlternatingSamples() {
+        CicDecimator decimator = new CicDecimator(2, 4);
+        for (int i = 0; i < 4 * 10; i++) {
+            if (decimator.add(i % 2 == 0 ? 1000 : 2000)) {
+                assertEquals(1500, decimator.getOutput());
+            }
+        }
+    }
+
+    @Test
+    public void output_survivesIntegratorWraparound() {
+        CicDecimator decimator = new CicDecimator(2, 1024);
+        long sample = 1L << 40;
+        boolean emitted = false;
+        // the integrators overflow a long long before the loop ends
+        for (int i = 0; i < 1024 * 4000; i++) {
+            if (decimator.add(sample)) {
+                assertEquals(sample, decimator.getOutput());
+                emitted = true;
+            }
+        }
+        assertTrue(emitted);
+    }
+
+    @Test
+    public void output_followsStepAfterDelay() {
+        CicDecimator decimator = new CicDecimator(2, 4);
+        long last = -1;
+        for (int i = 0; i < 4 * 10; i++) {
+            if (decimator.add(i < 16 ? 0 : 800)) {
+                last = decimator.getOutput();
+            }
+        }
+        assertEquals(800, last);
+    }
+
+    @Test
+    public void output_ofPressureAtMaximumDecimationIsExact() {
+        // 1100 hPa at the fixed point scale of the high-rate acquisition
+        long sample = 11_000_000L;
+        CicDecimator decimator = new CicDecimator(3, 1024);
+        int outputs = 0;
+        for (int i = 0; i < 1024 * 10; i++) {
+            if (decimator.add(sample)) {
+                assertEquals(sample, decimator.getOutput());
+                outputs++;
+            }
+        }
+        assertEquals(8, outputs);
+    }
+}
@@ -0,0 +1,27 @@
+package pl.piotrserafin.weatherstation.pipeline;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PipelineMetricsTest {
+
+    @Test
+    public void snapshot_reportsPeakDepthOnce() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        metrics.onOffer(true, 3);
+        metrics.onOffer(true, 7);
+        metrics.onOffer(false, 5);
+
+        PipelineMetrics.Snapshot first = metrics.snapshotAndReset();
+        assertEquals(3, first.offered);
+        assertEquals(1, first.dropped);
+        assertEquals(7, first.maxDepth);
+
+        metrics.onOffer(true, 2);
+        PipelineMetrics.Snapshot second = metrics.snapshotAndReset();
+        assertEquals(1, second.offered);
+        assertEquals(0, second.dropped);
+        assertEquals(2, second.maxDepth);
+    }
+}
@@ -0,0 +1,82 @@
+package pl.piotrserafin.weatherstation.pipeline;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SpscQueueTest {
+
+    @Test
+    public void capacity_isRoundedUpToPowerOfTwo() {
+        assertEquals(8, new SpscQueue<Integer>(5).capacity());
+        assertEquals(8, new SpscQueue<Integer>(8).capacity());
+        assertEquals(1, new SpscQueue<Integer>(1).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacity_mustBePositive() {
+        new SpscQueue<Integer>(0);
+    }
+
+    @Test
+    public void offer_failsWhenFull() {
+        SpscQueue<Integer> queue = new SpscQueue<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+        assertEquals(4, queue.size());
+    }
+
+    @Test
+    public void poll_keepsOrderAcrossWraparound() {
+        SpscQueue<Integer> queue = new SpscQueue<>(4);
+        int next = 0;
+        int expected = 0;
+        // head and tail pass the end of the buffer many times
+        for (int round = 0; round < 100; round++) {
+            while (queue.offer(next)) {
+                next++;
+            }
+            for (int i = 0; i < 3; i++) {
+                assertEquals(Integer.valueOf(expected++), queue.poll());
+            }
+        }
+        while (queue.size() > 0) {
+            assertEquals(Integer.valueOf(expected++), queue.poll());
+        }
+        assertEquals(next, expected);
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void poll_returnsNullWhenEmpty() {
+        SpscQueue<String> queue = new SpscQueue<>(2);
+        assertNull(queue.poll());
+        queue.offer("a");
+        assertEquals("a", queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void producerAndConsumerThreads_loseNothing() throws InterruptedException {
+        final int count = 100000;
+        final SpscQueue<Integer> queue = new SpscQueue<>(16);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                while (!queue.offer(i)) {
+                    Thread.yield();
+                }
+            }
+        });
+        producer.start();
+        for (int i = 0; i < count; i++) {
+            Integer element;
+            while ((element = queue.poll()) == null) {
+                Thread.yield();
+            }
+            assertEquals(Integer.valueOf(i), element);
+        }
+        producer.join();
+    }
+}
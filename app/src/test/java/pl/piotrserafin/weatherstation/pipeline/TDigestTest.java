@@ -0,0 +1,95 @@
+package pl.piotrserafin.weatherstation.pipeline;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TDigestTest {
+
+    private static final int SAMPLES = 10000;
+
+    @Test
+    public void quantile_ofEmptyDigestIsNaN() {
+        assertTrue(Float.isNaN(new TDigest().quantile(0.5)));
+    }
+
+    @Test
+    public void quantile_ofUniformValuesIsAccurate() {
+        TDigest digest = new TDigest();
+        Random random = new Random(42);
+        for (int i = 0; i < SAMPLES; i++) {
+            digest.add(random.nextFloat() * 100);
+        }
+        assertEquals(SAMPLES, digest.size());
+        assertEquals(50f, digest.quantile(0.5), 2f);
+        assertEquals(90f, digest.quantile(0.9), 1.5f);
+        assertEquals(99f, digest.quantile(0.99), 0.5f);
+        assertEquals(1f, digest.quantile(0.01), 0.5f);
+    }
+
+    @Test
+    public void quantile_atBoundsReturnsExtremes() {
+        TDigest digest = new TDigest();
+        for (int i = 1; i <= 1000; i++) {
+            digest.add(i);
+        }
+        assertEquals(1f, digest.quantile(0), 0f);
+        assertEquals(1000f, digest.quantile(1), 0f);
+    }
+
+    @Test
+    public void quantile_ofConstantValueIsThatValue() {
+        TDigest digest = new TDigest();
+        for (int i = 0; i < 500; i++) {
+            digest.add(21.5f);
+        }
+        assertEquals(21.5f, digest.quantile(0.5), 1e-4f);
+    }
+
+    @Test
+    public void add_ignoresNaN() {
+        TDigest digest = new TDigest();
+        digest.add(1f);
+        digest.add(Float.NaN);
+        assertEquals(1, digest.size());
+        assertEquals(1f, digest.quantile(0.5), 0f);
+    }
+
+    @Test
+    public void add_mergesAnotherDigest() {
+        TDigest low = new TDigest();
+        TDigest high = new TDigest();
+        for (int i = 0; i < 1000; i++) {
+            low.add(i);
+            high.add(1000 + i);
+        }
+        low.add(high);
+        assertEquals(2000, low.size());
+        assertEquals(1000f, low.quantile(0.5), 20f);
+        assertEquals(0f, low.quantile(0), 0f);
+        assertEquals(1999f, low.quantile(1), 0f);
+    }
+
+    @Test
+    public void fromBytes_restoresSerializedDigest() {
+        TDigest digest = new TDigest();
+        Random random = new Random(7);
+        for (int i = 0; i < SAMPLES; i++) {
+            digest.add((float) random.nextGaussian());
+        }
+        TDigest restored = TDigest.fromBytes(digest.toBytes());
+        assertEquals(digest.size(), restored.size());
+        for (double q : new double[]{0, 0.01, 0.25, 0.5, 0.75, 0.99, 1}) {
+            assertEquals(digest.quantile(q), restored.quantile(q), 1e-3f);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fromBytes_rejectsUnknownVersion() {
+        byte[] bytes = new TDigest().toBytes();
+        bytes[0] = 99;
+        TDigest.fromBytes(bytes);
+    }
+}
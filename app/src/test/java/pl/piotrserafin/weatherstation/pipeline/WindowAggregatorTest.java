@@ -0,0 +1,64 @@
+package pl.piotrserafin.weatherstation.pipeline;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import pl.piotrserafin.weatherstation.model.SensorData;
+
+import static org.junit.Assert.*;
+
+public class WindowAggregatorTest {
+
+    @Test
+    public void windowOfOnlyNaN_isNotSummarized() {
+        WindowAggregator aggregator = new WindowAggregator(60000);
+        aggregator.add(new SensorData(1000, "temperature", Float.NaN));
+        aggregator.add(new SensorData(1000, "pressure", 1000f));
+
+        List<WindowSummary> summaries = aggregator.closeTumblingWindows(2000);
+        assertEquals(1, summaries.size());
+        assertEquals("pressure", summaries.get(0).getSensorName());
+    }
+
+    @Test
+    public void nanReadings_areSkipped() {
+        WindowAggregator aggregator = new WindowAggregator(60000);
+        aggregator.add(new SensorData(1000, "temperature", 20f));
+        aggregator.add(new SensorData(2000, "temperature", Float.NaN));
+        aggregator.add(new SensorData(3000, "temperature", 22f));
+
+        WindowSummary summary = aggregator.closeTumblingWindows(4000).get(0);
+        assertEquals(2, summary.getCount());
+        assertEquals(20f, summary.getMin(), 0f);
+        assertEquals(22f, summary.getMax(), 0f);
+        assertEquals(21f, summary.getMean(), 1e-6f);
+    }
+
+    @Test
+    public void slidingWindow_spansTumblingWindows() {
+        WindowAggregator aggregator = new WindowAggregator(60000);
+        aggregator.add(new SensorData(0, "pressure", 1000f));
+        aggregator.closeTumblingWindows(30000);
+        aggregator.add(new SensorData(40000, "pressure", 1003f));
+
+        WindowSummary summary = aggregator.closeTumblingWindows(50000).get(0);
+        assertEquals(1, summary.getCount());
+        assertEquals(2, summary.getSlidingCount());
+        assertEquals(40000, summary.getSlidingSpanMillis());
+        assertEquals(3f, summary.getSlidingChange(), 1e-3f);
+        assertEquals(30000, summary.getWindowStart());
+    }
+
+    @Test
+    public void slidingWindow_dropsSamplesOlderThanItsLength() {
+        WindowAggregator aggregator = new WindowAggregator(60000);
+        aggregator.add(new SensorData(0, "pressure", 1000f));
+        aggregator.add(new SensorData(70000, "pressure", 1001f));
+
+        WindowSummary summary = aggregator.closeTumblingWindows(80000).get(0);
+        assertEquals(2, summary.getCount());
+        assertEquals(1, summary.getSlidingCount());
+        assertEquals(1001f, summary.getSlidingMin(), 0f);
+    }
+}